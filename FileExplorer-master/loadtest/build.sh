@@ -0,0 +1,27 @@
+#!/bin/sh
+#
+# Builds the FTP engine in src/org/swiftp and the load test tools in
+# loadtest/src into loadtest/build/classes, to run on a plain JVM:
+#
+#   ANDROID_JAR=$ANDROID_HOME/platforms/android-14/android.jar loadtest/build.sh
+#   java -cp loadtest/build/classes org.swiftp.HeadlessServer [options] dir
+#
+# android.jar is only needed to compile. The rest of the app needs the
+# Android build tools and is left out.
+
+set -e
+cd "$(dirname "$0")/.."
+
+if [ -z "$ANDROID_JAR" ] || [ ! -f "$ANDROID_JAR" ]; then
+	echo "Set ANDROID_JAR to the android.jar of an SDK platform" >&2
+	exit 1
+fi
+
+OUT=loadtest/build/classes
+rm -rf "$OUT"
+mkdir -p "$OUT"
+javac -encoding GBK -nowarn -d "$OUT" -classpath "$ANDROID_JAR" \
+	src/org/swiftp/*.java \
+	src/net/micode/fileexplorer/MediaFile.java \
+	loadtest/src/org/swiftp/*.java
+echo "Built $OUT"
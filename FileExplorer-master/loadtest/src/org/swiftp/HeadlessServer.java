@@ -0,0 +1,199 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+
+import android.util.Log;
+
+/**
+ * Runs the FTP engine as a plain Java process serving one directory, so
+ * that the same SessionThread and FtpCmd code that runs on the device can be
+ * load tested and profiled on a workstation or in CI. The Android classes
+ * are only needed to compile: at run time the engine reaches the system
+ * through the JvmPlatform installed here, and the android.util.Log level
+ * constants it uses are inlined by the compiler.
+ * 
+ * This class and the load test tools that use it live in loadtest/src, so
+ * they don't ship in the app. loadtest/build.sh compiles them with the 
+ * org.swiftp package and net.micode.fileexplorer.MediaFile against
+ * android.jar. Run with only those classes on the class path:
+ * 
+ *   ANDROID_JAR=.../android.jar loadtest/build.sh
+ *   java -cp loadtest/build/classes org.swiftp.HeadlessServer [options] dir
+ * 
+ * The port actually bound is printed on standard output, which helps with
+ * --port 0. See usage() for the options.
+ */
+public class HeadlessServer {
+	private static final MyLog myLog = new MyLog(HeadlessServer.class.getName());
+	
+	public static void main(String[] args) {
+		int port = Defaults.getPortNumber();
+		boolean nio = false;
+		int logLevel = Log.INFO;
+		File stateDir = null;
+		File root = null;
+		try {
+			for(int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if(arg.equals("--nio")) {
+					nio = true;
+				} else if(arg.equals("--verbose")) {
+					logLevel = Log.DEBUG;
+				} else if(arg.equals("--quiet")) {
+					logLevel = Log.WARN;
+				} else if(arg.startsWith("--") && i + 1 < args.length) {
+					String value = args[++i];
+					if(arg.equals("--port")) {
+						port = Integer.parseInt(value);
+					} else if(arg.equals("--max-bandwidth")) {
+						Defaults.setMaxBandwidth(1024L * Long.parseLong(value));
+					} else if(arg.equals("--session-bandwidth")) {
+						Defaults.setSessionBandwidth(1024L * Long.parseLong(value));
+					} else if(arg.equals("--max-sessions")) {
+						Defaults.setMaxSessions(Integer.parseInt(value));
+					} else if(arg.equals("--max-sessions-per-address")) {
+						Defaults.setMaxSessionsPerAddress(Integer.parseInt(value));
+					} else if(arg.equals("--idle-timeout")) {
+						Defaults.setIdleTimeoutMs(1000L * Long.parseLong(value));
+					} else if(arg.equals("--pasv-ports")) {
+						String[] range = value.split("-");
+						if(range.length != 2) {
+							usage("Bad port range " + value);
+						}
+						Defaults.setPasvPortMin(Integer.parseInt(range[0].trim()));
+						Defaults.setPasvPortMax(Integer.parseInt(range[1].trim()));
+					} else if(arg.equals("--pasv-timeout")) {
+						Defaults.setPasvAcceptTimeoutMs(1000L * Long.parseLong(value));
+					} else if(arg.equals("--read-ahead")) {
+						Defaults.setRetrReadAheadBuffers(Integer.parseInt(value));
+					} else if(arg.equals("--write-behind")) {
+						Defaults.setStorWriteBehindBuffers(Integer.parseInt(value));
+					} else if(arg.equals("--state-dir")) {
+						stateDir = new File(value);
+					} else {
+						usage("Unknown option " + arg);
+					}
+				} else if(root == null && !arg.startsWith("--")) {
+					root = new File(arg);
+				} else {
+					usage("Unexpected argument " + arg);
+				}
+			}
+		} catch (NumberFormatException e) {
+			usage("Bad number: " + e.getMessage());
+		}
+		if(root == null) {
+			usage("No directory given");
+		} else if(!root.isDirectory()) {
+			usage("Not a directory: " + root);
+		}
+		
+		Defaults.setConsoleLogLevel(logLevel);
+		final TcpListener listener;
+		try {
+			listener = start(root, port, nio, stateDir);
+		} catch (IOException e) {
+			System.err.println("Couldn't listen on port " + port + ": " + e);
+			System.exit(1);
+			return;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				HeadlessServer.stop(listener);
+			}
+		});
+		System.out.println("Listening on port " + getPort(listener));
+		try {
+			listener.join();
+		} catch (InterruptedException e) {
+		}
+	}
+	
+	/**
+	 * Installs the JvmPlatform, binds the listen socket and starts serving
+	 * root. The console log level and any limits should be set in Defaults
+	 * first. Returns the running listener, whose port can be found with 
+	 * getPort().
+	 */
+	static TcpListener start(File root, int port, boolean nio, File stateDir)
+	throws IOException
+	{
+		// Must come before anything logs or looks up the chroot
+		Globals.setPlatform(new JvmPlatform(stateDir));
+		Globals.setChrootDir(root.getAbsoluteFile());
+		Defaults.setUiLogLevel(Integer.MAX_VALUE); // there is no UI
+		Defaults.setNioSessions(nio);
+		
+		ServerSocket listenSocket;
+		if(nio) {
+			// The NioListener needs the channel behind the socket
+			listenSocket = ServerSocketChannel.open().socket();
+		} else {
+			listenSocket = new ServerSocket();
+		}
+		listenSocket.setReuseAddress(true);
+		listenSocket.bind(new InetSocketAddress(port));
+		TcpListener listener = nio ? new NioListener(listenSocket) 
+				: new TcpListener(listenSocket);
+		
+		Metrics.markStarted();
+		SessionManager.getInstance().startReaper();
+		listener.start();
+		myLog.i("Serving " + Globals.getChrootDir() + " with " 
+				+ (nio ? "NIO" : "thread per connection") + " sessions");
+		return listener;
+	}
+	
+	static int getPort(TcpListener listener) {
+		return listener.listenSocket.getLocalPort();
+	}
+	
+	static void stop(TcpListener listener) {
+		listener.quit();
+		SessionManager.getInstance().stopReaper();
+		SessionManager.getInstance().closeAll();
+		PasvPortPool.getInstance().closeIdle();
+	}
+	
+	private static void usage(String error) {
+		System.err.println(error);
+		System.err.println("Usage: HeadlessServer [options] directory\n"
+				+ "  --port n                      listen port, 0 for any\n"
+				+ "  --nio                         serve sessions from one selector thread\n"
+				+ "  --max-bandwidth KiB           global transfer limit per second\n"
+				+ "  --session-bandwidth KiB       per-session transfer limit per second\n"
+				+ "  --max-sessions n              0 for no limit\n"
+				+ "  --max-sessions-per-address n  0 for no limit\n"
+				+ "  --idle-timeout seconds        0 for none\n"
+				+ "  --pasv-ports min-max          ports for PASV listeners\n"
+				+ "  --pasv-timeout seconds        wait for PASV connections, 0 forever\n"
+				+ "  --read-ahead chunks           RETR reads this far ahead, 0 for off\n"
+				+ "  --write-behind chunks         STOR may queue this many, 0 for none\n"
+				+ "  --state-dir dir               keep the checksum journal here\n"
+				+ "  --verbose | --quiet           log debug messages, or warnings only");
+		System.exit(2);
+	}
+}
@@ -0,0 +1,83 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * The Platform used when the engine runs as a plain Java process. Log
+ * messages go to standard error and everything else is a no-op: there is no
+ * UI to update, no media scanner to notify and no Wi-Fi interface to ask
+ * about.
+ */
+public class JvmPlatform implements Platform {
+	// Letters for the android.util.Log levels, VERBOSE (2) to ASSERT (7)
+	private static final String LEVELS = "??VDIWEA";
+	private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+	private final File filesDir;
+	
+	/**
+	 * @param filesDir where to keep state between runs, or null to keep
+	 *        none
+	 */
+	public JvmPlatform(File filesDir) {
+		this.filesDir = filesDir;
+	}
+	
+	public void log(int level, String tag, String message) {
+		char levelChar = level >= 0 && level < LEVELS.length() ? 
+				LEVELS.charAt(level) : '?';
+		String time;
+		synchronized(timeFormat) {
+			time = timeFormat.format(new Date());
+		}
+		System.err.println(time + " " + levelChar + "/" + tag + ": " + message);
+	}
+	
+	public void showLog(int level, String message) {
+	}
+	
+	public void monitor(boolean incoming, String line) {
+	}
+	
+	public String getVersion() {
+		String version = JvmPlatform.class.getPackage() == null ? null 
+				: JvmPlatform.class.getPackage().getImplementationVersion();
+		return version != null ? version : "headless";
+	}
+	
+	public void fileChanged(String path) {
+	}
+	
+	public File getFilesDir() {
+		return filesDir;
+	}
+	
+	public File getDefaultChrootDir() {
+		return new File(System.getProperty("user.dir"));
+	}
+	
+	public InetAddress getWifiIp() {
+		return null;
+	}
+}
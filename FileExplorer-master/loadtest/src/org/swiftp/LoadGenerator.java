@@ -0,0 +1,798 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Drives an in-process HeadlessServer over loopback with several clients at
+ * once and reports how it copes. Each run pairs one of the client mixes
+ * below with PASV or PORT data connections and a client count:
+ * 
+ *   retr    every client RETRs the same large file over and over
+ *   stor    every client STORs a large file of its own over and over
+ *   mirror  every client NLSTs a directory of small files and RETRs them all
+ *   browse  every client CWDs around a tree, LISTing and NLSTing as it goes
+ * 
+ * For every run it prints the operations and megabytes per second, the
+ * 50th and 99th percentile latency of a command (from sending it to the 
+ * final reply, so transfers include their data), and the peak number of
+ * live threads and heap in use. Threads started by the generator itself are
+ * not counted. Before each run the server's thread pools let go of the
+ * idle threads left from the run before, so each run counts only the
+ * threads it needed itself.
+ * 
+ * --save-baseline writes the numbers to a properties file, and --baseline
+ * compares a run with such a file and exits with status 1 if any run had
+ * errors or its throughput dropped by more than the tolerance. Saving into
+ * an existing file replaces only the runs that were made, so a change can
+ * re-record just the runs it affects by choosing them with --mix, --mode
+ * and --clients. A file recorded with other --nio, --seconds or --bulk-size
+ * options is left alone. The numbers depend on the machine, so a baseline
+ * should be recorded on the machine that checks against it. 
+ * loadtest/baseline.properties holds the numbers for the default options.
+ * Run it the same way as HeadlessServer:
+ * 
+ *   java -cp loadtest/build/classes org.swiftp.LoadGenerator [options]
+ */
+public class LoadGenerator {
+	private static final MyLog myLog = new MyLog(LoadGenerator.class.getName());
+	
+	static final String[] MIXES = { "retr", "stor", "mirror", "browse" };
+	static final String CLIENT_PREFIX = "LoadClient";
+	static final int SMALL_FILES = 100;
+	static final int SMALL_FILE_SIZE = 4096;
+	static final int TREE_DIRS = 20;
+	static final int TREE_FILES = 50;
+	static final int SOCKET_TIMEOUT_MS = 30000;
+	
+	// Options
+	static List<String> mixes = new ArrayList<String>(Arrays.asList(MIXES));
+	static List<String> modes = new ArrayList<String>(Arrays.asList("pasv", "port"));
+	static int[] clientCounts = { 1, 10, 100 };
+	static int seconds = 5;
+	static int bulkKiB = 8192;
+	static boolean nio = false;
+	static int tolerance = 20;
+	static File baselineFile = null;
+	static File saveBaselineFile = null;
+	
+	static byte[] uploadChunk;
+	
+	public static void main(String[] args) {
+		int logLevel = Log.WARN;
+		try {
+			for(int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if(arg.equals("--nio")) {
+					nio = true;
+				} else if(arg.equals("--verbose")) {
+					logLevel = Log.INFO;
+				} else if(arg.startsWith("--") && i + 1 < args.length) {
+					String value = args[++i];
+					if(arg.equals("--mix")) {
+						mixes = splitList(value, MIXES);
+					} else if(arg.equals("--mode")) {
+						modes = splitList(value, new String[] { "pasv", "port" });
+					} else if(arg.equals("--clients")) {
+						String[] counts = value.split(",");
+						clientCounts = new int[counts.length];
+						for(int j = 0; j < counts.length; j++) {
+							clientCounts[j] = Integer.parseInt(counts[j].trim());
+						}
+					} else if(arg.equals("--seconds")) {
+						seconds = Integer.parseInt(value);
+					} else if(arg.equals("--bulk-size")) {
+						bulkKiB = Integer.parseInt(value);
+					} else if(arg.equals("--tolerance")) {
+						tolerance = Integer.parseInt(value);
+					} else if(arg.equals("--baseline")) {
+						baselineFile = new File(value);
+					} else if(arg.equals("--save-baseline")) {
+						saveBaselineFile = new File(value);
+					} else {
+						usage("Unknown option " + arg);
+					}
+				} else {
+					usage("Unexpected argument " + arg);
+				}
+			}
+		} catch (NumberFormatException e) {
+			usage("Bad number: " + e.getMessage());
+		}
+		
+		Properties baseline = null;
+		if(baselineFile != null) {
+			try {
+				baseline = loadBaseline(baselineFile);
+			} catch (IOException e) {
+				usage("Couldn't read baseline: " + e);
+			}
+		}
+		String header = "# LoadGenerator baseline, " 
+				+ (nio ? "NIO" : "thread per connection") 
+				+ " sessions, " + seconds + "s per run, " + bulkKiB + " KiB bulk files";
+		Properties saved = new Properties();
+		if(saveBaselineFile != null && saveBaselineFile.exists()) {
+			// Checked now rather than after minutes of runs
+			try {
+				if(!header.equals(readFirstLine(saveBaselineFile))) {
+					usage(saveBaselineFile + " was recorded with other options");
+				}
+				saved = loadBaseline(saveBaselineFile);
+			} catch (IOException e) {
+				usage("Couldn't read baseline: " + e);
+			}
+		}
+		
+		Defaults.setConsoleLogLevel(logLevel);
+		// The generator is the only client, and it opens many sessions
+		Defaults.setMaxSessions(0);
+		Defaults.setMaxSessionsPerAddress(0);
+		
+		File root = null;
+		TcpListener listener = null;
+		Properties results = new Properties();
+		int regressions = 0;
+		try {
+			root = makeFixture();
+			listener = HeadlessServer.start(root, 0, nio, null);
+			int port = HeadlessServer.getPort(listener);
+			// Give the JIT a chance to compile the hot paths before anything
+			// is measured, or the first runs come out slow
+			System.err.println("Warming up");
+			for(String mix : mixes) {
+				for(String mode : modes) {
+					run(port, mix, mode.equals("pasv"), 4);
+				}
+			}
+			System.out.println(String.format("%-7s %-5s %7s %9s %8s %8s %8s %8s %8s %7s",
+					"mix", "mode", "clients", "ops/s", "MiB/s", "p50 ms", 
+					"p99 ms", "threads", "heap MiB", "errors"));
+			for(String mix : mixes) {
+				for(String mode : modes) {
+					for(int clients : clientCounts) {
+						Result result = run(port, mix, mode.equals("pasv"), clients);
+						String key = mix + "." + mode + "." + clients;
+						result.store(results, key);
+						System.out.print(String.format(
+								"%-7s %-5s %7d %9.1f %8.2f %8.2f %8.2f %8d %8.1f %7d",
+								mix, mode, clients, result.opsPerSecond(),
+								result.mibPerSecond(), result.percentileMs(50),
+								result.percentileMs(99), result.peakThreads,
+								result.peakHeap / 1048576.0, result.errors));
+						if(baseline != null) {
+							String verdict = result.compare(baseline, key, tolerance);
+							if(verdict.startsWith("REGRESSION")) {
+								regressions++;
+							}
+							System.out.print("  " + verdict);
+						}
+						System.out.println();
+					}
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Load test failed: " + e);
+			System.exit(1);
+		} finally {
+			if(listener != null) {
+				HeadlessServer.stop(listener);
+			}
+			if(root != null) {
+				deleteTree(root);
+			}
+		}
+		
+		if(saveBaselineFile != null) {
+			saved.putAll(results);
+			try {
+				// Written by hand rather than with Properties.store() so
+				// that the keys are sorted and the file diffs well
+				PrintWriter out = new PrintWriter(new FileOutputStream(saveBaselineFile));
+				try {
+					out.println(header);
+					for(String key : new TreeSet<String>(saved.stringPropertyNames())) {
+						out.println(key + "=" + saved.getProperty(key));
+					}
+				} finally {
+					out.close();
+				}
+				if(out.checkError()) {
+					throw new IOException("write failed");
+				}
+			} catch (IOException e) {
+				System.err.println("Couldn't save baseline: " + e);
+				System.exit(1);
+			}
+		}
+		if(regressions > 0) {
+			System.out.println(regressions + " run(s) regressed against " + baselineFile);
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+	
+	private static Properties loadBaseline(File file) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		return properties;
+	}
+	
+	private static String readFirstLine(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "ISO-8859-1"));
+		try {
+			return in.readLine();
+		} finally {
+			in.close();
+		}
+	}
+	
+	private static List<String> splitList(String value, String[] allowed) {
+		List<String> list = new ArrayList<String>();
+		for(String item : value.split(",")) {
+			item = item.trim();
+			if(!Arrays.asList(allowed).contains(item)) {
+				usage("Unknown value " + item);
+			}
+			list.add(item);
+		}
+		return list;
+	}
+	
+	private static void usage(String error) {
+		System.err.println(error);
+		System.err.println("Usage: LoadGenerator [options]\n"
+				+ "  --mix list          of retr,stor,mirror,browse (default all)\n"
+				+ "  --mode list         of pasv,port (default both)\n"
+				+ "  --clients list      client counts to try (default 1,10,100)\n"
+				+ "  --seconds n         length of each run (default 5)\n"
+				+ "  --bulk-size KiB     size of the retr and stor files (default 8192)\n"
+				+ "  --nio               serve sessions from one selector thread\n"
+				+ "  --baseline file     compare with a saved baseline\n"
+				+ "  --tolerance percent allowed drift from the baseline (default 20)\n"
+				+ "  --save-baseline file\n"
+				+ "                      record the runs made in a baseline file\n"
+				+ "  --verbose           log server messages at INFO");
+		System.exit(2);
+	}
+	
+	/**
+	 * Creates a temporary directory holding the files every mix works on.
+	 */
+	private static File makeFixture() throws IOException {
+		File root = File.createTempFile("loadgen", "");
+		if(!root.delete() || !root.mkdir()) {
+			throw new IOException("Couldn't create " + root);
+		}
+		Random random = new Random(0);
+		uploadChunk = new byte[65536];
+		random.nextBytes(uploadChunk);
+		
+		writeFile(new File(root, "bulk.bin"), 1024L * bulkKiB);
+		new File(root, "upload").mkdir();
+		File small = new File(root, "small");
+		small.mkdir();
+		for(int i = 0; i < SMALL_FILES; i++) {
+			writeFile(new File(small, "f" + i), SMALL_FILE_SIZE);
+		}
+		File tree = new File(root, "tree");
+		tree.mkdir();
+		for(int i = 0; i < TREE_DIRS; i++) {
+			File dir = new File(tree, "d" + i);
+			dir.mkdir();
+			for(int j = 0; j < TREE_FILES; j++) {
+				writeFile(new File(dir, "e" + j), j);
+			}
+		}
+		return root;
+	}
+	
+	private static void writeFile(File file, long length) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			while(length > 0) {
+				int n = (int)Math.min(length, uploadChunk.length);
+				out.write(uploadChunk, 0, n);
+				length -= n;
+			}
+		} finally {
+			out.close();
+		}
+	}
+	
+	private static void deleteTree(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				deleteTree(child);
+			}
+		}
+		file.delete();
+	}
+	
+	/**
+	 * Runs one mix with the given number of clients for the configured
+	 * number of seconds, while sampling threads and heap.
+	 */
+	private static Result run(int port, String mix, boolean passive, int clients) {
+		drainIdleThreads();
+		Runtime runtime = Runtime.getRuntime();
+		runtime.gc();
+		final Result result = new Result();
+		final CountDownLatch ready = new CountDownLatch(clients);
+		final CountDownLatch go = new CountDownLatch(1);
+		Client[] threads = new Client[clients];
+		for(int i = 0; i < clients; i++) {
+			threads[i] = new Client(i, port, mix, passive, ready, go);
+			threads[i].start();
+		}
+		try {
+			ready.await();
+		} catch (InterruptedException e) {
+		}
+		long deadline = System.nanoTime() + seconds * 1000000000L;
+		for(Client client : threads) {
+			client.deadline = deadline;
+		}
+		long start = System.nanoTime();
+		go.countDown();
+		while(System.nanoTime() < deadline) {
+			result.sample(runtime);
+			Util.sleepIgnoreInterupt(100);
+		}
+		for(Client client : threads) {
+			try {
+				client.join();
+			} catch (InterruptedException e) {
+			}
+			result.add(client);
+		}
+		result.elapsedNanos = System.nanoTime() - start;
+		// Let the server notice the QUITs before the next run is measured
+		Util.sleepIgnoreInterupt(200);
+		return result;
+	}
+	
+	/**
+	 * Makes the server's thread pools end their idle threads now rather than
+	 * after their keep-alive time, and waits for them to go.
+	 */
+	private static void drainIdleThreads() {
+		ThreadPoolExecutor[] pools = { SessionThread.transferThreads,
+				DedicatedWriter.writers, ReadAheadReader.readers };
+		for(ThreadPoolExecutor pool : pools) {
+			long keepAlive = pool.getKeepAliveTime(TimeUnit.NANOSECONDS);
+			// Wakes up the idle threads, which then time out at once
+			pool.setKeepAliveTime(1, TimeUnit.NANOSECONDS);
+			long deadline = System.nanoTime() + 5000000000L;
+			while(pool.getPoolSize() > 0 && System.nanoTime() < deadline) {
+				Util.sleepIgnoreInterupt(10);
+			}
+			pool.setKeepAliveTime(keepAlive, TimeUnit.NANOSECONDS);
+		}
+	}
+	
+	/**
+	 * The numbers for one run.
+	 */
+	static class Result {
+		long ops = 0;
+		long bytes = 0;
+		long errors = 0;
+		long elapsedNanos = 1;
+		int peakThreads = 0;
+		long peakHeap = 0;
+		long[] latencies = new long[0];
+		
+		void sample(Runtime runtime) {
+			ThreadGroup group = Thread.currentThread().getThreadGroup();
+			while(group.getParent() != null) {
+				group = group.getParent();
+			}
+			Thread[] threads = new Thread[group.activeCount() * 2 + 16];
+			int count = group.enumerate(threads, true);
+			int serverThreads = 0;
+			for(int i = 0; i < count; i++) {
+				if(threads[i] != Thread.currentThread() 
+						&& !threads[i].getName().startsWith(CLIENT_PREFIX)) {
+					serverThreads++;
+				}
+			}
+			peakThreads = Math.max(peakThreads, serverThreads);
+			peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+		}
+		
+		void add(Client client) {
+			ops += client.ops;
+			bytes += client.bytes;
+			errors += client.errors;
+			long[] merged = new long[latencies.length + client.latencyCount];
+			System.arraycopy(latencies, 0, merged, 0, latencies.length);
+			System.arraycopy(client.latencies, 0, merged, latencies.length, 
+					client.latencyCount);
+			latencies = merged;
+		}
+		
+		double opsPerSecond() {
+			return ops * 1e9 / elapsedNanos;
+		}
+		
+		double mibPerSecond() {
+			return bytes * 1e9 / elapsedNanos / 1048576.0;
+		}
+		
+		double percentileMs(int percent) {
+			if(latencies.length == 0) {
+				return 0;
+			}
+			Arrays.sort(latencies);
+			int rank = (int)Math.ceil(percent / 100.0 * latencies.length);
+			return latencies[Math.max(rank - 1, 0)] / 1e6;
+		}
+		
+		void store(Properties properties, String key) {
+			properties.setProperty(key + ".opsPerSecond", format(opsPerSecond()));
+			properties.setProperty(key + ".mibPerSecond", format(mibPerSecond()));
+			properties.setProperty(key + ".p50Ms", format(percentileMs(50)));
+			properties.setProperty(key + ".p99Ms", format(percentileMs(99)));
+			properties.setProperty(key + ".threads", Integer.toString(peakThreads));
+			properties.setProperty(key + ".heapMiB", format(peakHeap / 1048576.0));
+			properties.setProperty(key + ".errors", Long.toString(errors));
+		}
+		
+		private static String format(double value) {
+			return String.format("%.2f", value);
+		}
+		
+		/**
+		 * Returns a one word verdict followed by the change in throughput
+		 * and latency against the baseline. Only a drop in throughput or
+		 * any errors count as a regression, since the tail latency of a
+		 * few seconds of load is too noisy to fail a build on.
+		 */
+		String compare(Properties baseline, String key, int tolerance) {
+			String oldOps = baseline.getProperty(key + ".opsPerSecond");
+			String oldP50 = baseline.getProperty(key + ".p50Ms");
+			String oldP99 = baseline.getProperty(key + ".p99Ms");
+			if(oldOps == null || oldP50 == null || oldP99 == null) {
+				return "no baseline";
+			}
+			double opsChange = change(Double.parseDouble(oldOps), opsPerSecond());
+			String verdict;
+			if(errors > 0 || opsChange < -tolerance) {
+				verdict = "REGRESSION";
+			} else {
+				verdict = "ok";
+			}
+			return String.format("%s (ops %+.0f%%, p50 %+.0f%%, p99 %+.0f%%)", 
+					verdict, opsChange, 
+					change(Double.parseDouble(oldP50), percentileMs(50)),
+					change(Double.parseDouble(oldP99), percentileMs(99)));
+		}
+		
+		private static double change(double before, double after) {
+			if(before <= 0) {
+				return 0;
+			}
+			return (after - before) * 100 / before;
+		}
+	}
+	
+	/**
+	 * One simulated user. It logs in, waits for the others, then repeats
+	 * its mix until the deadline and quits.
+	 */
+	static class Client extends Thread {
+		final int id;
+		final int port;
+		final String mix;
+		final boolean passive;
+		final CountDownLatch ready;
+		final CountDownLatch go;
+		volatile long deadline;
+		
+		long ops = 0;
+		long bytes = 0;
+		long errors = 0;
+		long[] latencies = new long[1024];
+		int latencyCount = 0;
+		
+		private Socket control;
+		private InputStream in;
+		private OutputStream out;
+		private byte[] buffer = new byte[65536];
+		
+		Client(int id, int port, String mix, boolean passive, 
+				CountDownLatch ready, CountDownLatch go) 
+		{
+			super(CLIENT_PREFIX + id);
+			this.id = id;
+			this.port = port;
+			this.mix = mix;
+			this.passive = passive;
+			this.ready = ready;
+			this.go = go;
+		}
+		
+		public void run() {
+			try {
+				try {
+					connect();
+				} finally {
+					ready.countDown();
+				}
+				go.await();
+				int step = 0;
+				while(System.nanoTime() < deadline) {
+					try {
+						if(control == null) {
+							connect();
+						}
+						runStep(step++);
+					} catch (IOException e) {
+						myLog.l(Log.INFO, getName() + ": " + e);
+						errors++;
+						disconnect();
+					}
+				}
+				if(control != null) {
+					command("QUIT", 221);
+				}
+			} catch (IOException e) {
+				myLog.l(Log.INFO, getName() + ": " + e);
+				errors++;
+			} catch (InterruptedException e) {
+			} finally {
+				disconnect();
+			}
+		}
+		
+		private void connect() throws IOException {
+			control = new Socket();
+			control.setSoTimeout(SOCKET_TIMEOUT_MS);
+			control.connect(new InetSocketAddress(InetAddress.getByName(null), port), 
+					SOCKET_TIMEOUT_MS);
+			in = new BufferedInputStream(control.getInputStream());
+			out = control.getOutputStream();
+			expect(readReply(), 220);
+			command("USER load" + id, 331);
+			command("PASS load", 230);
+			command("TYPE I", 200);
+		}
+		
+		private void disconnect() {
+			if(control != null) {
+				try {
+					control.close();
+				} catch (IOException e) {
+				}
+				control = null;
+			}
+		}
+		
+		private void runStep(int step) throws IOException {
+			if(mix.equals("retr")) {
+				timed("RETR /bulk.bin", null, 0);
+			} else if(mix.equals("stor")) {
+				timed("STOR /upload/c" + id + ".bin", uploadChunk, 1024L * bulkKiB);
+			} else if(mix.equals("mirror")) {
+				int file = step % (SMALL_FILES + 1);
+				if(file == 0) {
+					timed("NLST /small", null, 0);
+				} else {
+					timed("RETR /small/f" + (file - 1), null, 0);
+				}
+			} else {
+				int dir = (step / 4 + id) % TREE_DIRS;
+				switch(step % 4) {
+				case 0:
+					timedCommand("CWD /tree/d" + dir, 250);
+					break;
+				case 1:
+					timed("LIST", null, 0);
+					break;
+				case 2:
+					timedCommand("PWD", 257);
+					break;
+				default:
+					timed("NLST", null, 0);
+					break;
+				}
+			}
+		}
+		
+		private void timedCommand(String command, int expected) throws IOException {
+			long start = System.nanoTime();
+			command(command, expected);
+			record(System.nanoTime() - start);
+		}
+		
+		/**
+		 * Runs a command that uses a data connection, sending length bytes
+		 * made of repeats of upload if it is not null, and reading what the 
+		 * server sends otherwise. The latency includes setting up the data 
+		 * connection.
+		 */
+		private void timed(String command, byte[] upload, long length) 
+		throws IOException 
+		{
+			long start = System.nanoTime();
+			Socket data = null;
+			ServerSocket portListener = null;
+			try {
+				if(passive) {
+					String reply = command("PASV", 227);
+					data = new Socket();
+					data.setSoTimeout(SOCKET_TIMEOUT_MS);
+					data.connect(new InetSocketAddress(control.getInetAddress(), 
+							parsePasvPort(reply)), SOCKET_TIMEOUT_MS);
+				} else {
+					portListener = new ServerSocket(0, 1, control.getLocalAddress());
+					portListener.setSoTimeout(SOCKET_TIMEOUT_MS);
+					int p = portListener.getLocalPort();
+					command("PORT " + control.getLocalAddress().getHostAddress()
+							.replace('.', ',') + "," + (p / 256) + "," + (p % 256), 200);
+				}
+				send(command);
+				int code = readReply();
+				if(code != 150 && code != 125) {
+					throw new IOException(command + " got " + code);
+				}
+				if(!passive) {
+					data = portListener.accept();
+					data.setSoTimeout(SOCKET_TIMEOUT_MS);
+				}
+				if(upload != null) {
+					OutputStream dataOut = data.getOutputStream();
+					long left = length;
+					while(left > 0) {
+						int n = (int)Math.min(left, upload.length);
+						dataOut.write(upload, 0, n);
+						left -= n;
+					}
+					bytes += length;
+				} else {
+					InputStream dataIn = data.getInputStream();
+					int n;
+					while((n = dataIn.read(buffer)) != -1) {
+						bytes += n;
+					}
+				}
+				data.close();
+				data = null;
+				expect(readReply(), 226);
+			} finally {
+				if(data != null) {
+					data.close();
+				}
+				if(portListener != null) {
+					portListener.close();
+				}
+			}
+			record(System.nanoTime() - start);
+		}
+		
+		private void record(long nanos) {
+			if(latencyCount == latencies.length) {
+				latencies = Arrays.copyOf(latencies, latencies.length * 2);
+			}
+			latencies[latencyCount++] = nanos;
+			ops++;
+		}
+		
+		private String lastReply;
+		
+		private String command(String command, int expected) throws IOException {
+			send(command);
+			expect(readReply(), expected);
+			return lastReply;
+		}
+		
+		private void send(String command) throws IOException {
+			out.write((command + "\r\n").getBytes("US-ASCII"));
+			out.flush();
+		}
+		
+		private void expect(int code, int expected) throws IOException {
+			if(code != expected) {
+				throw new IOException("Expected " + expected + ", got: " + lastReply);
+			}
+		}
+		
+		/**
+		 * Reads a possibly multi-line reply and returns its code. The text
+		 * of the last line is left in lastReply.
+		 */
+		private int readReply() throws IOException {
+			String line = readLine();
+			if(line.length() >= 4 && line.charAt(3) == '-') {
+				String end = line.substring(0, 3) + " ";
+				while(!line.startsWith(end)) {
+					line = readLine();
+				}
+			}
+			lastReply = line;
+			try {
+				return Integer.parseInt(line.substring(0, 3));
+			} catch (RuntimeException e) {
+				throw new IOException("Bad reply: " + line);
+			}
+		}
+		
+		private String readLine() throws IOException {
+			StringBuilder line = new StringBuilder();
+			int c;
+			while((c = in.read()) != '\n') {
+				if(c == -1) {
+					throw new IOException("Control connection closed");
+				}
+				if(c != '\r') {
+					line.append((char)c);
+				}
+			}
+			return line.toString();
+		}
+		
+		private static int parsePasvPort(String reply) throws IOException {
+			int open = reply.indexOf('(');
+			int close = reply.indexOf(')', open);
+			if(open == -1 || close == -1) {
+				throw new IOException("Bad PASV reply: " + reply);
+			}
+			String[] fields = reply.substring(open + 1, close).split(",");
+			if(fields.length != 6) {
+				throw new IOException("Bad PASV reply: " + reply);
+			}
+			return Integer.parseInt(fields[4].trim()) * 256 
+					+ Integer.parseInt(fields[5].trim());
+		}
+	}
+}
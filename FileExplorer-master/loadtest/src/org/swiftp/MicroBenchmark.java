@@ -0,0 +1,496 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import android.util.Log;
+
+/**
+ * Times small, hot pieces of the server on their own, without sockets, and
+ * checks that each still behaves as it should. The cases are:
+ * 
+ *   chroot   FtpCmd.violatesChroot() on a deep path, against the plain
+ *            canonical path lookup it is built on. Checks that a symlink
+ *            swapped to point out of the chroot is refused at once.
+ *   dispatch finding the command for a line and creating it, against
+ *            String.split(), toUpperCase() and a scan of the verbs, and
+ *            against calling its constructor directly. Checks that every
+ *            verb in the table creates the class listed for it.
+ *   listing  formatting a LIST line with LsFormatter, against building it
+ *            with a StringBuilder and a new SimpleDateFormat per line, as
+ *            CmdLIST used to. The entries have mtimes spread over years,
+ *            so the formatter's date cache mostly misses. Checks that both
+ *            give the same bytes.
+ *   ascii    translating a 64 KiB chunk of text with AsciiCodec, against
+ *            the old RETR loop that sent each line separately (timed here
+ *            copying into a buffer, without its socket writes) and the old
+ *            STOR loop that dropped every '\r'. Checks that text survives
+ *            encoding and decoding in chunks that split "\r\n", and that
+ *            a lone '\r' is kept.
+ * 
+ * Every timing runs its operation for --seconds to warm up, then for as 
+ * long again while measuring, and prints the mean time per operation. A 
+ * failed check is printed and makes the exit status 1. Like LoadGenerator,
+ * the numbers are only comparable on one machine. Run it the same way as 
+ * HeadlessServer:
+ * 
+ *   java -cp loadtest/build/classes org.swiftp.MicroBenchmark [options] [case...]
+ */
+public class MicroBenchmark {
+	static final String[] CASES = { "chroot", "dispatch", "listing", "ascii" };
+	
+	// Options
+	static List<String> cases = new ArrayList<String>(Arrays.asList(CASES));
+	static double seconds = 1;
+	
+	static int failures = 0;
+	// Results go here so the JIT can't drop the work that made them
+	static volatile long sink;
+	
+	/**
+	 * One operation to time. Returns anything that depends on the work done.
+	 */
+	interface Op {
+		long run() throws Exception;
+	}
+	
+	public static void main(String[] args) {
+		List<String> chosen = new ArrayList<String>();
+		try {
+			for(int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if(arg.equals("--seconds") && i + 1 < args.length) {
+					seconds = Double.parseDouble(args[++i]);
+				} else if(arg.startsWith("--")) {
+					usage("Unknown option " + arg);
+				} else if(Arrays.asList(CASES).contains(arg)) {
+					chosen.add(arg);
+				} else {
+					usage("Unknown case " + arg);
+				}
+			}
+		} catch (NumberFormatException e) {
+			usage("Bad number: " + e.getMessage());
+		}
+		if(!chosen.isEmpty()) {
+			cases = chosen;
+		}
+		
+		Globals.setPlatform(new JvmPlatform(null));
+		Defaults.setConsoleLogLevel(Log.WARN);
+		Defaults.setUiLogLevel(Integer.MAX_VALUE); // there is no UI
+		System.out.println(String.format("%-8s %-48s %12s", "case", "operation", 
+				"ns/op"));
+		for(String name : cases) {
+			try {
+				if(name.equals("chroot")) {
+					chroot();
+				} else if(name.equals("dispatch")) {
+					dispatch();
+				} else if(name.equals("listing")) {
+					listing();
+				} else if(name.equals("ascii")) {
+					ascii();
+				}
+			} catch (Exception e) {
+				fail(name, "threw " + e);
+			}
+		}
+		if(failures > 0) {
+			System.out.println(failures + " check(s) failed");
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+	
+	private static void usage(String error) {
+		System.err.println(error);
+		System.err.println("Usage: MicroBenchmark [options] [case...]\n"
+				+ "  cases               " + Arrays.asList(CASES) + " (default all)\n"
+				+ "  --seconds n         warm-up and measuring time of each timing"
+				+ " (default 1)");
+		System.exit(2);
+	}
+	
+	static void time(String name, String label, Op op) throws Exception {
+		long nanos = (long)(seconds * 1000000000L);
+		measure(op, nanos);
+		double nsPerOp = measure(op, nanos);
+		System.out.println(String.format("%-8s %-48s %12.1f", name, label, nsPerOp));
+	}
+	
+	private static double measure(Op op, long nanos) throws Exception {
+		long result = 0;
+		long ops = 0;
+		long start = System.nanoTime();
+		long now;
+		do {
+			// Only look at the clock every few operations, the fastest ones
+			// take less time than reading it
+			for(int i = 0; i < 64; i++) {
+				result += op.run();
+			}
+			ops += 64;
+		} while((now = System.nanoTime()) - start < nanos);
+		sink = result;
+		return (double)(now - start) / ops;
+	}
+	
+	static void check(String name, String what, boolean ok) {
+		if(ok) {
+			System.out.println(String.format("%-8s %-48s %12s", name, what, "ok"));
+		} else {
+			fail(name, what);
+		}
+	}
+	
+	static void fail(String name, String what) {
+		System.out.println(String.format("%-8s %-48s %12s", name, what, "FAILED"));
+		failures++;
+	}
+	
+	/**
+	 * Makes an empty directory to work in
+	 */
+	static File makeTempDir(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		if(!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Couldn't create " + dir);
+		}
+		return dir;
+	}
+	
+	/**
+	 * Deletes a directory tree. Symlinks are removed, never followed.
+	 */
+	static void deleteTree(File file) throws IOException {
+		if(file.isDirectory() && file.getCanonicalFile().equals(file.getAbsoluteFile())) {
+			File[] children = file.listFiles();
+			if(children != null) {
+				for(File child : children) {
+					deleteTree(child);
+				}
+			}
+		}
+		file.delete();
+	}
+	
+	/**
+	 * Points link at target, replacing whatever link was. There is no way to
+	 * make a symlink from Java on Android, so this runs ln.
+	 */
+	static void symlink(File target, File link) throws Exception {
+		Process ln = new ProcessBuilder("ln", "-sfn", target.getPath(), 
+				link.getPath()).start();
+		if(ln.waitFor() != 0) {
+			throw new IOException("ln failed for " + link);
+		}
+	}
+	
+	static void chroot() throws Exception {
+		final String name = "chroot";
+		File root = makeTempDir("microbench");
+		try {
+			File chroot = new File(root, "chroot");
+			File outside = new File(root, "outside");
+			File inside = new File(chroot, "inside");
+			final File deep = new File(chroot, "a/b/c/d/e/f/g/h");
+			deep.mkdirs();
+			outside.mkdir();
+			inside.mkdir();
+			Globals.setChrootDir(chroot.getCanonicalFile());
+			final FtpCmd cmd = new FtpCmd(null, MicroBenchmark.class.getName()) {
+				public void run() {
+				}
+			};
+			
+			File link = new File(chroot, "link");
+			File viaLink = new File(link, "file");
+			symlink(inside, link);
+			check(name, "symlink into the chroot allowed", !cmd.violatesChroot(viaLink));
+			symlink(outside, link);
+			check(name, "symlink swapped out of the chroot refused", 
+					cmd.violatesChroot(viaLink));
+			symlink(inside, link);
+			check(name, "symlink swapped back allowed", !cmd.violatesChroot(viaLink));
+			
+			final File file = new File(deep, "file");
+			time(name, "violatesChroot, 10 levels deep", new Op() {
+				public long run() {
+					return cmd.violatesChroot(file) ? 1 : 0;
+				}
+			});
+			time(name, "File.getCanonicalPath, 10 levels deep", new Op() {
+				public long run() throws IOException {
+					return file.getCanonicalPath().length();
+				}
+			});
+		} finally {
+			deleteTree(root);
+		}
+	}
+	
+	static void dispatch() throws Exception {
+		final String name = "dispatch";
+		for(CmdMap cmdMap : FtpCmd.cmdClasses) {
+			FtpCmd cmd = cmdMap.newInstance(null, cmdMap.getName());
+			if(cmd.getClass() != cmdMap.getCommand() || cmd.cmdMap != cmdMap) {
+				fail(name, cmdMap.getName() + " creates " 
+						+ cmd.getClass().getSimpleName());
+				return;
+			}
+		}
+		check(name, "every verb creates its class", true);
+		
+		// What a client sends in a typical session
+		final String[] lines = { "USER anonymous", "PASS guest", "SYST", "FEAT",
+				"PWD", "TYPE I", "CWD /sdcard/DCIM", "PASV", "LIST -la", 
+				"SIZE IMG_0001.jpg", "RETR IMG_0001.jpg", "xmkd backup", "NOOP",
+				"STOR notes.txt", "QUIT" };
+		time(name, "lookup by split, toUpperCase and scan", new Op() {
+			int next = 0;
+			public long run() {
+				String line = lines[next++ % lines.length];
+				String verb = line.split(" ")[0].trim().toUpperCase();
+				for(CmdMap cmdMap : FtpCmd.cmdClasses) {
+					if(cmdMap.getName().equals(verb)) {
+						return cmdMap.hashCode();
+					}
+				}
+				return 0;
+			}
+		});
+		time(name, "lookup by packed verb", new Op() {
+			int next = 0;
+			public long run() {
+				String line = lines[next++ % lines.length];
+				int end = line.indexOf(' ');
+				CmdMap cmdMap = FtpCmd.findCmd(FtpCmd.packVerb(line, 0, 
+						end == -1 ? line.length() : end));
+				return cmdMap == null ? 0 : cmdMap.hashCode();
+			}
+		});
+		final CmdMap retr = FtpCmd.findCmd(FtpCmd.packVerb("RETR", 0, 4));
+		time(name, "create RETR with CmdMap.newInstance", new Op() {
+			public long run() {
+				return retr.newInstance(null, "RETR x").hashCode();
+			}
+		});
+		time(name, "create RETR with its constructor", new Op() {
+			public long run() {
+				return new CmdRETR(null, "RETR x").hashCode();
+			}
+		});
+	}
+	
+	static void listing() throws Exception {
+		final String name = "listing";
+		final long now = System.currentTimeMillis();
+		final LsFormatter formatter = new LsFormatter("UTF-8");
+		Random random = new Random(1);
+		String[] names = { "IMG_%04d.jpg", "notes %d.txt", "backup-%d", 
+				"\u00dcbersicht %d.pdf", "\u5199\u771f%d.png", "track%02d.mp3" };
+		final int count = 1000;
+		final boolean[] dirs = new boolean[count];
+		final long[] sizes = new long[count];
+		final long[] mTimes = new long[count];
+		final String[] fileNames = new String[count];
+		for(int i = 0; i < count; i++) {
+			dirs[i] = random.nextInt(8) == 0;
+			sizes[i] = dirs[i] ? 0 : (long)Math.pow(10, random.nextDouble() * 11);
+			// Up to three years old, or a little in the future. Nothing near
+			// the six month line, where the two could see different times.
+			long age;
+			do {
+				age = (long)(random.nextDouble() * 3 * 365 * 86400000L) - 86400000L;
+			} while(Math.abs(age - LsFormatter.MS_IN_SIX_MONTHS) < 3600000L);
+			mTimes[i] = now - age;
+			fileNames[i] = String.format(names[random.nextInt(names.length)], i);
+		}
+		
+		for(int i = 0; i < count; i++) {
+			formatter.format(dirs[i], sizes[i], mTimes[i], fileNames[i]);
+			byte[] expected = makeLsString(now, dirs[i], sizes[i], mTimes[i], 
+					fileNames[i]).getBytes("UTF-8");
+			if(!Arrays.equals(expected, Arrays.copyOf(formatter.getBytes(), 
+					formatter.getLength()))) {
+				fail(name, "LsFormatter differs for " + fileNames[i]);
+				return;
+			}
+		}
+		check(name, "LsFormatter matches the reference lines", true);
+		
+		time(name, "StringBuilder and SimpleDateFormat per line", new Op() {
+			int next = 0;
+			public long run() throws Exception {
+				int i = next++ % count;
+				return makeLsString(now, dirs[i], sizes[i], mTimes[i], 
+						fileNames[i]).getBytes("UTF-8").length;
+			}
+		});
+		time(name, "LsFormatter.format", new Op() {
+			int next = 0;
+			public long run() {
+				int i = next++ % count;
+				formatter.format(dirs[i], sizes[i], mTimes[i], fileNames[i]);
+				return formatter.getLength();
+			}
+		});
+	}
+	
+	/**
+	 * A LIST line built the way CmdLIST used to, with the six month test 
+	 * the right way round
+	 */
+	private static String makeLsString(long now, boolean isDirectory, long size,
+			long mTime, String name) {
+		StringBuilder response = new StringBuilder();
+		if(isDirectory) {
+			response.append("drwxr-xr-x 1 owner group");
+		} else {
+			response.append("-rw-r--r-- 1 owner group");
+		}
+		String sizeString = Long.toString(size);
+		int padSpaces = 13 - sizeString.length();
+		while(padSpaces-- > 0) {
+			response.append(' ');
+		}
+		response.append(sizeString);
+		SimpleDateFormat format;
+		if(mTime <= now && now - mTime < LsFormatter.MS_IN_SIX_MONTHS) {
+			format = new SimpleDateFormat(" MMM dd HH:mm ", Locale.US);
+		} else {
+			format = new SimpleDateFormat(" MMM dd  yyyy ", Locale.US);
+		}
+		response.append(format.format(new Date(mTime)));
+		response.append(name);
+		response.append("\r\n");
+		return response.toString();
+	}
+	
+	static void ascii() throws Exception {
+		final String name = "ascii";
+		// Lines of 20 to 100 printable characters, ending in '\n'
+		Random random = new Random(1);
+		final int chunkSize = 65536;
+		final byte[] text = new byte[chunkSize];
+		int lineEnd = 0;
+		for(int i = 0; i < text.length; i++) {
+			if(i == lineEnd) {
+				lineEnd = i + 20 + random.nextInt(81);
+				text[i] = '\n';
+			} else {
+				text[i] = (byte)(' ' + random.nextInt(95));
+			}
+		}
+		
+		final byte[] encoded = new byte[AsciiCodec.maxEncodedLength(chunkSize)];
+		int encodedLength = new AsciiCodec().encode(text, 0, text.length, encoded);
+		String expected = new String(text, "US-ASCII").replace("\n", "\r\n");
+		check(name, "encode puts \\r before each \\n", 
+				expected.equals(new String(encoded, 0, encodedLength, "US-ASCII")));
+		byte[] again = new byte[AsciiCodec.maxEncodedLength(encodedLength)];
+		check(name, "encode leaves \\r\\n alone", new AsciiCodec().encode(encoded, 0, 
+				encodedLength, again) == encodedLength);
+		
+		// Odd sized chunks, so some of them end between '\r' and '\n'
+		AsciiCodec codec = new AsciiCodec();
+		byte[] decoded = new byte[text.length + 1];
+		byte[] out = new byte[AsciiCodec.maxDecodedLength(999)];
+		int decodedLength = 0;
+		for(int pos = 0; pos < encodedLength; pos += 999) {
+			int n = codec.decode(encoded, pos, Math.min(999, encodedLength - pos), out);
+			if(decodedLength + n > text.length) {
+				decodedLength = -1;
+				break;
+			}
+			System.arraycopy(out, 0, decoded, decodedLength, n);
+			decodedLength += n;
+		}
+		check(name, "decode in pieces gives back the text", decodedLength == text.length
+				&& codec.finishDecode(out) == 0
+				&& Arrays.equals(text, Arrays.copyOf(decoded, decodedLength)));
+		byte[] loneCR = { 'a', '\r', 'b', '\r' };
+		codec = new AsciiCodec();
+		int n = codec.decode(loneCR, 0, loneCR.length, out);
+		n += codec.finishDecode(Arrays.copyOfRange(out, n, out.length));
+		check(name, "decode keeps a lone \\r", n == 4);
+		
+		final byte[] sent = new byte[AsciiCodec.maxEncodedLength(chunkSize)];
+		final byte[] crnBuf = { '\r', '\n' };
+		time(name, "encode 64 KiB, old per-line copies", new Op() {
+			public long run() {
+				// What CmdRETR did, with each sendViaDataSocket() replaced
+				// by a copy
+				int sentLength = 0;
+				int startPos = 0, endPos;
+				for(endPos = 0; endPos < text.length; endPos++) {
+					if(text[endPos] == '\n') {
+						System.arraycopy(text, startPos, sent, sentLength, 
+								endPos - startPos);
+						sentLength += endPos - startPos;
+						if(endPos == 0 || text[endPos - 1] != '\r') {
+							System.arraycopy(crnBuf, 0, sent, sentLength, 1);
+							sentLength++;
+						}
+						startPos = endPos;
+					}
+				}
+				System.arraycopy(text, startPos, sent, sentLength, endPos - startPos);
+				return sentLength + endPos - startPos;
+			}
+		});
+		final AsciiCodec encoder = new AsciiCodec();
+		time(name, "encode 64 KiB, AsciiCodec", new Op() {
+			public long run() {
+				return encoder.encode(text, 0, text.length, sent);
+			}
+		});
+		final int received = Math.min(chunkSize, encodedLength);
+		final byte[] stored = new byte[AsciiCodec.maxDecodedLength(received)];
+		time(name, "decode 64 KiB, old drop every \\r", new Op() {
+			public long run() {
+				// What CmdAbstractStore did, though it worked in place
+				int kept = 0;
+				for(int i = 0; i < received; i++) {
+					if(encoded[i] != '\r') {
+						stored[kept++] = encoded[i];
+					}
+				}
+				return kept;
+			}
+		});
+		final AsciiCodec decoder = new AsciiCodec();
+		time(name, "decode 64 KiB, AsciiCodec", new Op() {
+			public long run() {
+				return decoder.decode(encoded, 0, received, stored);
+			}
+		});
+	}
+}
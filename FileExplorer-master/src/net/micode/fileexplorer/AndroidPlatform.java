@@ -0,0 +1,105 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package net.micode.fileexplorer;
+
+import java.io.File;
+import java.net.InetAddress;
+
+import org.swiftp.Globals;
+import org.swiftp.MyLog;
+import org.swiftp.Platform;
+
+import android.content.Context;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.media.MediaScannerConnection;
+import android.media.MediaScannerConnection.MediaScannerConnectionClient;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * The Platform used inside the app. It reaches the system through the
+ * context in Globals and the FTPServerService. It lives here rather than
+ * in org.swiftp so that the engine builds without the app.
+ */
+public class AndroidPlatform implements Platform {
+	static MyLog myLog = new MyLog(AndroidPlatform.class.getName());
+	
+	public void log(int level, String tag, String message) {
+		Log.println(level, tag, message);
+	}
+	
+	public void showLog(int level, String message) {
+		FTPServerService.log(level, message);
+	}
+	
+	public void monitor(boolean incoming, String line) {
+		FTPServerService.writeMonitor(incoming, line);
+	}
+	
+	public String getVersion() {
+		Context context = Globals.getContext();
+		String packageName = context.getPackageName();
+		try {
+			return context.getPackageManager().getPackageInfo(packageName, 0).versionName;
+		} catch ( NameNotFoundException e) {
+			myLog.l(Log.ERROR, "NameNotFoundException looking up SwiFTP version");
+			return null;
+		}
+	}
+	
+	public void fileChanged(String path) {
+		new MediaScannerNotifier(Globals.getContext(), path);
+	}
+	
+	public File getFilesDir() {
+		Context context = Globals.getContext();
+		return context == null ? null : context.getFilesDir();
+	}
+	
+	public File getDefaultChrootDir() {
+		return new File(Util.getSdDirectory());
+	}
+	
+	public InetAddress getWifiIp() {
+		return FTPServerService.getWifiIp();
+	}
+	
+	// A class to help notify the Music Player and other media services when
+	// a file has been uploaded. Thanks to Dave Sparks in his post to the
+	// Android Developers mailing list on 14 Feb 2009.
+	private static class MediaScannerNotifier implements MediaScannerConnectionClient {
+	    private MediaScannerConnection connection;
+	    private String path;
+
+	    public MediaScannerNotifier(Context context, String path) {
+	        this.path = path;
+	        connection = new MediaScannerConnection(context, this);
+	        connection.connect();
+	    }
+
+	    public void onMediaScannerConnected() {
+	        connection.scanFile(path, null); // null: we don't know MIME type
+	    }
+
+	    public void onScanCompleted(String path, Uri uri) {
+            connection.disconnect();
+ 	    }
+	}
+}
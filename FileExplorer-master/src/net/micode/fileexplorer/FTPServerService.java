@@ -23,8 +23,11 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Deque;
 import java.util.List;
 
 import android.app.Notification;
@@ -44,8 +47,12 @@ import android.os.PowerManager;
 import android.util.Log;
 import org.swiftp.Defaults;
 import org.swiftp.Globals;
+import org.swiftp.Metrics;
 import org.swiftp.MyLog;
+import org.swiftp.NioListener;
+import org.swiftp.PasvPortPool;
 import org.swiftp.ProxyConnector;
+import org.swiftp.SessionManager;
 import org.swiftp.SessionThread;
 import org.swiftp.TcpListener;
 import org.swiftp.UiUpdater;
@@ -76,7 +83,8 @@ public class FTPServerService extends Service implements Runnable {
 
     protected static List<String> sessionMonitor = new ArrayList<String>();
 
-    protected static List<String> serverLog = new ArrayList<String>();
+    // Only written by the LogDrainer thread, but read by the UI
+    protected static Deque<String> serverLog = new ArrayDeque<String>();
 
     protected static int uiLogLevel = Defaults.getUiLogLevel();
 
@@ -94,12 +102,12 @@ public class FTPServerService extends Service implements Runnable {
 
     protected static boolean fullWake;
 
+    protected static boolean nioSessions;
+
     private TcpListener wifiListener = null;
 
     private ProxyConnector proxyConnector = null;
 
-    private List<SessionThread> sessionThreads = new ArrayList<SessionThread>();
-
     private static SharedPreferences settings = null;
 
     PowerManager.WakeLock wakeLock;
@@ -123,6 +131,7 @@ public class FTPServerService extends Service implements Runnable {
     }
 
     public void onCreate() {
+        Globals.setPlatform(new AndroidPlatform());
         myLog.l(Log.DEBUG, "SwiFTP server created");
         // Set the application-wide context global, if not already set
         Context myContext = Globals.getContext();
@@ -228,6 +237,39 @@ public class FTPServerService extends Service implements Runnable {
         }
         myLog.l(Log.DEBUG, "Using port " + port);
 
+        nioSessions = settings.getBoolean("nioSessions", Defaults.isNioSessions());
+        myLog.l(Log.DEBUG, "Using NIO sessions: " + nioSessions);
+
+        // Rate limits are stored in KiB per second, zero meaning no limit
+        Defaults.setMaxBandwidth(1024L * settings.getInt("maxBandwidthKiB",
+                (int) (Defaults.getMaxBandwidth() / 1024)));
+        Defaults.setSessionBandwidth(1024L * settings.getInt("sessionBandwidthKiB",
+                (int) (Defaults.getSessionBandwidth() / 1024)));
+
+        // Session limits, zero meaning no limit or no timeout
+        Defaults.setMaxSessions(settings.getInt("maxSessions",
+                Defaults.getMaxSessions()));
+        Defaults.setMaxSessionsPerAddress(settings.getInt("maxSessionsPerAddress",
+                Defaults.getMaxSessionsPerAddress()));
+        Defaults.setIdleTimeoutMs(1000L * settings.getInt("idleTimeoutSeconds",
+                (int) (Defaults.getIdleTimeoutMs() / 1000)));
+
+        // PASV listeners, both ports zero meaning any free port
+        Defaults.setPasvPortMin(settings.getInt("pasvPortMin",
+                Defaults.getPasvPortMin()));
+        Defaults.setPasvPortMax(settings.getInt("pasvPortMax",
+                Defaults.getPasvPortMax()));
+        Defaults.setPasvAcceptTimeoutMs(1000L * settings.getInt("pasvAcceptTimeoutSeconds",
+                (int) (Defaults.getPasvAcceptTimeoutMs() / 1000)));
+
+        // Chunks RETR reads ahead of the network, zero for none
+        Defaults.setRetrReadAheadBuffers(settings.getInt("retrReadAheadBuffers",
+                Defaults.getRetrReadAheadBuffers()));
+
+        // Chunks STOR may receive ahead of the storage, zero for none
+        Defaults.setStorWriteBehindBuffers(settings.getInt("storWriteBehindBuffers",
+                Defaults.getStorWriteBehindBuffers()));
+
         acceptNet = false;
         acceptWifi = true;
         fullWake = false;
@@ -237,7 +279,12 @@ public class FTPServerService extends Service implements Runnable {
 
     // This opens a listening socket on all interfaces.
     void setupListener() throws IOException {
-        listenSocket = new ServerSocket();
+        if (nioSessions) {
+            // The NioListener needs the channel behind the socket
+            listenSocket = ServerSocketChannel.open().socket();
+        } else {
+            listenSocket = new ServerSocket();
+        }
         listenSocket.setReuseAddress(true);
         listenSocket.bind(new InetSocketAddress(port));
     }
@@ -296,6 +343,7 @@ public class FTPServerService extends Service implements Runnable {
         UiUpdater.updateClients();
 
         myLog.l(Log.DEBUG, "Server thread running");
+        Metrics.markStarted();
 
         // set our members according to user preferences
         if (!loadSettings()) {
@@ -323,6 +371,7 @@ public class FTPServerService extends Service implements Runnable {
         }
         takeWakeLock();
 
+        SessionManager.getInstance().startReaper();
         myLog.l(Log.INFO, "SwiFTP server ready");
         setupNotification();
 
@@ -346,7 +395,11 @@ public class FTPServerService extends Service implements Runnable {
                     // Either our wifi listener hasn't been created yet, or has
                     // crashed,
                     // so spawn it
-                    wifiListener = new TcpListener(listenSocket, this);
+                    if (nioSessions) {
+                        wifiListener = new NioListener(listenSocket);
+                    } else {
+                        wifiListener = new TcpListener(listenSocket);
+                    }
                     wifiListener.start();
                 }
             }
@@ -394,7 +447,7 @@ public class FTPServerService extends Service implements Runnable {
                     }
                     if (shouldStartListener) {
                         myLog.l(Log.DEBUG, "Spawning ProxyConnector");
-                        proxyConnector = new ProxyConnector(this);
+                        proxyConnector = new ProxyConnector();
                         proxyConnector.start();
                         proxyStartMillis = nowMillis;
                     }
@@ -409,6 +462,7 @@ public class FTPServerService extends Service implements Runnable {
             }
         }
 
+        SessionManager.getInstance().stopReaper();
         terminateAllSessions();
 
         if (proxyConnector != null) {
@@ -428,15 +482,8 @@ public class FTPServerService extends Service implements Runnable {
     }
 
     private void terminateAllSessions() {
-        myLog.i("Terminating " + sessionThreads.size() + " session thread(s)");
-        synchronized (this) {
-            for (SessionThread sessionThread : sessionThreads) {
-                if (sessionThread != null) {
-                    sessionThread.closeDataSocket();
-                    sessionThread.closeSocket();
-                }
-            }
-        }
+        SessionManager.getInstance().closeAll();
+        PasvPortPool.getInstance().closeIdle();
     }
 
     public void cleanupAndStopService() {
@@ -550,14 +597,18 @@ public class FTPServerService extends Service implements Runnable {
     }
 
     public static List<String> getServerLogContents() {
-        return new ArrayList<String>(serverLog);
+        synchronized (serverLog) {
+            return new ArrayList<String>(serverLog);
+        }
     }
 
     public static void log(int msgLevel, String s) {
-        serverLog.add(s);
-        int maxSize = Defaults.getServerLogScrollBack();
-        while (serverLog.size() > maxSize) {
-            serverLog.remove(0);
+        synchronized (serverLog) {
+            serverLog.addLast(s);
+            int maxSize = Defaults.getServerLogScrollBack();
+            while (serverLog.size() > maxSize) {
+                serverLog.removeFirst();
+            }
         }
         // updateClients();
     }
@@ -592,40 +643,14 @@ public class FTPServerService extends Service implements Runnable {
     }
 
     /**
-     * The FTPServerService must know about all running session threads so they
-     * can be terminated on exit. Called when a new session is created.
+     * Registers a session created by the ProxyConnector with the
+     * SessionManager, which terminates all sessions on exit. Called before
+     * the session is started; sessions remove themselves when they close.
+     * 
+     * @return false if the session was refused and has been closed
      */
-    public void registerSessionThread(SessionThread newSession) {
-        // Before adding the new session thread, clean up any finished session
-        // threads that are present in the list.
-
-        // Since we're not allowed to modify the list while iterating over
-        // it, we construct a list in toBeRemoved of threads to remove
-        // later from the sessionThreads list.
-        synchronized (this) {
-            List<SessionThread> toBeRemoved = new ArrayList<SessionThread>();
-            for (SessionThread sessionThread : sessionThreads) {
-                if (!sessionThread.isAlive()) {
-                    myLog.l(Log.DEBUG, "Cleaning up finished session...");
-                    try {
-                        sessionThread.join();
-                        myLog.l(Log.DEBUG, "Thread joined");
-                        toBeRemoved.add(sessionThread);
-                        sessionThread.closeSocket(); // make sure socket closed
-                    } catch (InterruptedException e) {
-                        myLog.l(Log.DEBUG, "Interrupted while joining");
-                        // We will try again in the next loop iteration
-                    }
-                }
-            }
-            for (SessionThread removeThread : toBeRemoved) {
-                sessionThreads.remove(removeThread);
-            }
-
-            // Cleanup is complete. Now actually add the new thread to the list.
-            sessionThreads.add(newSession);
-        }
-        myLog.d("Registered session thread");
+    public boolean registerSessionThread(SessionThread newSession) {
+        return SessionManager.getInstance().register(newSession);
     }
 
     /** Get the ProxyConnector, may return null if proxying is disabled. */
@@ -94,6 +94,7 @@ public class ServerControlActivity extends Fragment implements IBackPressedListe
         mActivity = getActivity();
         mRootView = inflater.inflate(R.layout.server_control_activity, container, false);
 
+        Globals.setPlatform(new AndroidPlatform());
         // Set the application-wide context global, if not already set
         Context myContext = Globals.getContext();
         if (myContext == null) {
@@ -246,7 +247,7 @@ public class ServerControlActivity extends Fragment implements IBackPressedListe
     OnClickListener startStopListener = new OnClickListener() {
         public void onClick(View v) {
             Globals.setLastError(null);
-            File chrootDir = new File(Defaults.chrootDir);
+            File chrootDir = new File(Util.getSdDirectory());
             if (!chrootDir.isDirectory())
                 return;
 
@@ -0,0 +1,120 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+/**
+ * Translates newlines for TYPE A transfers, a whole chunk at a time. Files
+ * are stored with Unix '\n' line endings and sent as "\r\n".
+ * 
+ * A codec carries state from one chunk to the next, so that a "\r\n" split
+ * across two chunks is handled like any other. Use one instance per transfer
+ * and direction.
+ */
+public class AsciiCodec {
+	// Encoding: the last byte of the previous chunk was '\r'
+	private boolean lastWasCR = false;
+	// Decoding: the previous chunk ended with a '\r' that we held back,
+	// since it is dropped if the next chunk starts with '\n'
+	private boolean pendingCR = false;
+	
+	/**
+	 * The largest output that encode() can produce for len input bytes
+	 */
+	public static int maxEncodedLength(int len) {
+		return 2 * len;
+	}
+	
+	/**
+	 * The largest output that decode() can produce for len input bytes
+	 */
+	public static int maxDecodedLength(int len) {
+		return len + 1;
+	}
+	
+	/**
+	 * Converts a chunk of a file for sending, putting '\r' before every '\n'
+	 * that doesn't already have one.
+	 * 
+	 * @return the number of bytes placed in out
+	 */
+	public int encode(byte[] in, int offset, int len, byte[] out) {
+		int outPos = 0;
+		boolean prevCR = lastWasCR;
+		int end = offset + len;
+		for(int i = offset; i < end; i++) {
+			byte b = in[i];
+			if(b == '\n' && !prevCR) {
+				out[outPos++] = '\r';
+			}
+			out[outPos++] = b;
+			prevCR = b == '\r';
+		}
+		lastWasCR = prevCR;
+		return outPos;
+	}
+	
+	/**
+	 * Converts a chunk received from the client for storing, turning every
+	 * "\r\n" into '\n'. A '\r' that isn't followed by '\n' is kept. Call
+	 * finishDecode() after the last chunk.
+	 * 
+	 * @return the number of bytes placed in out
+	 */
+	public int decode(byte[] in, int offset, int len, byte[] out) {
+		int outPos = 0;
+		int end = offset + len;
+		int i = offset;
+		if(pendingCR && i < end) {
+			if(in[i] != '\n') {
+				out[outPos++] = '\r';
+			}
+			pendingCR = false;
+		}
+		// Every byte but the last has the next one to look at
+		for(int last = end - 1; i < last; i++) {
+			byte b = in[i];
+			if(b != '\r' || in[i + 1] != '\n') {
+				out[outPos++] = b;
+			}
+		}
+		if(i < end) {
+			if(in[i] == '\r') {
+				// We can't tell yet whether a '\n' follows
+				pendingCR = true;
+			} else {
+				out[outPos++] = in[i];
+			}
+		}
+		return outPos;
+	}
+	
+	/**
+	 * Returns the '\r' held back at the end of the last chunk, if any, as
+	 * the number of bytes placed in out (0 or 1).
+	 */
+	public int finishDecode(byte[] out) {
+		if(pendingCR) {
+			pendingCR = false;
+			out[0] = '\r';
+			return 1;
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,118 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+/**
+ * Paces data transfers to the rates configured in Defaults. Each limiter
+ * keeps a schedule: the time by which every byte reserved so far will have
+ * been sent at its rate. A sender that has just moved some bytes reserves
+ * them and sleeps until its reservation falls due.
+ * 
+ * There is one limiter shared by all sessions for the global cap, and one
+ * per session for the per-session cap. Because a session sleeps after each
+ * chunk before it can reserve another, sessions moving chunks of the same
+ * size take turns on the global schedule and each gets a fair share of it.
+ * 
+ * Listings are sent as priority traffic: they are charged to the global
+ * schedule, which slows bulk transfers down to make room, but never wait.
+ * Control connection replies are not limited at all.
+ */
+public class BandwidthLimiter {
+	private static final BandwidthLimiter global = new BandwidthLimiter();
+	// How far behind schedule a limiter may fall before the lost time is
+	// forgotten. This lets an idle transfer burst briefly when it resumes.
+	private static final long MAX_BURST_NANOS = 100000000L; // 100 ms
+	
+	// System.nanoTime() at which all reserved bytes will have been sent
+	private long nextFreeTime = System.nanoTime();
+	// Bumped by wakeUp() to end any pause in progress
+	private long wakeUps = 0;
+	
+	/**
+	 * Whether any limit is configured. Senders use this to pick a smaller
+	 * chunk size, so that sessions interleave finely.
+	 */
+	public static boolean isLimiting() {
+		return Defaults.getMaxBandwidth() > 0 || Defaults.getSessionBandwidth() > 0;
+	}
+	
+	/**
+	 * Reserves numBytes at the given rate and returns how many nanoseconds
+	 * the caller must wait for the reservation to fall due.
+	 */
+	private synchronized long reserve(long numBytes, long bytesPerSecond) {
+		long now = System.nanoTime();
+		if(nextFreeTime < now - MAX_BURST_NANOS) {
+			nextFreeTime = now - MAX_BURST_NANOS;
+		}
+		nextFreeTime += (long)(numBytes * 1e9 / bytesPerSecond);
+		return nextFreeTime - now;
+	}
+	
+	/**
+	 * Charges bytes that a session just sent or received against the global
+	 * schedule and this session's own, and sleeps until both allow them.
+	 * Priority traffic is charged to the global schedule only, and returns
+	 * right away.
+	 */
+	public void transferred(long numBytes, boolean bulk) {
+		long globalRate = Defaults.getMaxBandwidth();
+		long sessionRate = Defaults.getSessionBandwidth();
+		long wait = 0;
+		if(globalRate > 0) {
+			wait = global.reserve(numBytes, globalRate);
+		}
+		if(!bulk) {
+			return;
+		}
+		if(sessionRate > 0) {
+			wait = Math.max(wait, reserve(numBytes, sessionRate));
+		}
+		if(wait > 0) {
+			pause(wait);
+		}
+	}
+	
+	private synchronized void pause(long nanos) {
+		long deadline = System.nanoTime() + nanos;
+		long startWakeUps = wakeUps;
+		while(wakeUps == startWakeUps) {
+			long left = deadline - System.nanoTime();
+			if(left <= 0) {
+				break;
+			}
+			try {
+				wait(left / 1000000, (int)(left % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Ends any pause a transfer using this limiter is in, so that an
+	 * aborted transfer notices right away.
+	 */
+	public synchronized void wakeUp() {
+		wakeUps++;
+		notifyAll();
+	}
+}
@@ -0,0 +1,356 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Computes file checksums for HASH and the XCRC family of commands, and
+ * remembers them so that verifying the same file again is free.
+ * 
+ * Results are keyed by canonical path and are only trusted while the file
+ * has the size and modification time it had when it was hashed. Commands that
+ * change files also invalidate their entries explicitly, since mtime has a
+ * coarse resolution on some filesystems. A result is not kept if the file
+ * may have changed while it was being hashed, that is if there was any
+ * invalidation meanwhile or the size or mtime differ afterwards.
+ * 
+ * The cache survives restarts in a small journal in the app's files
+ * directory. New results and invalidations are appended to it, and it is
+ * rewritten from memory when it has grown well past the number of live
+ * entries.
+ */
+public class ChecksumCache {
+	public static final String[] ALGORITHMS = 
+		{"SHA-1", "SHA-256", "SHA-512", "MD5", "CRC32"};
+	public static final int MAX_FILES = 1024;
+	private static final String JOURNAL_NAME = "checksums";
+	
+	private static ChecksumCache instance = null;
+	private static MyLog myLog = new MyLog(ChecksumCache.class.getName());
+	
+	/**
+	 * The checksums known for one version of a file, keyed by algorithm and
+	 * byte range
+	 */
+	private static class FileEntry {
+		long size;
+		long lastModified;
+		Map<String, String> sums = new HashMap<String, String>(4);
+		
+		FileEntry(long size, long lastModified) {
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+	
+	// Least recently used first
+	private final LinkedHashMap<String, FileEntry> entries = 
+		new LinkedHashMap<String, FileEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			protected boolean removeEldestEntry(Map.Entry<String, FileEntry> eldest) {
+				return size() > MAX_FILES;
+			}
+		};
+	// Bumped by every invalidation, so that a checksum computed while one
+	// was in progress is not stored
+	private long generation = 0;
+	private final File journalFile;
+	private Writer journal = null;
+	private int journalLines = 0;
+	
+	private ChecksumCache(File journalFile) {
+		this.journalFile = journalFile;
+		load();
+	}
+	
+	public static synchronized ChecksumCache getInstance() {
+		if(instance == null) {
+			File journalFile = null;
+			File filesDir = Globals.getPlatform().getFilesDir();
+			if(filesDir != null) {
+				journalFile = new File(filesDir, JOURNAL_NAME);
+			}
+			instance = new ChecksumCache(journalFile);
+		}
+		return instance;
+	}
+	
+	/**
+	 * Returns the canonical name of a supported algorithm, matched case
+	 * insensitively, or null if it isn't supported.
+	 */
+	public static String findAlgorithm(String name) {
+		for(String algorithm : ALGORITHMS) {
+			if(algorithm.equalsIgnoreCase(name)) {
+				return algorithm;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the lowercase hex checksum of the bytes from start up to, but
+	 * not including, end. An end of -1 means the end of the file. The file
+	 * and range must already have been checked by the caller.
+	 */
+	public String getChecksum(File file, String algorithm, long start, long end)
+			throws IOException {
+		String path = file.getCanonicalPath();
+		long size = file.length();
+		long lastModified = file.lastModified();
+		if(end == -1) {
+			end = size;
+		}
+		String sumKey = algorithm + " " + start + " " + end;
+		long startGeneration;
+		synchronized(this) {
+			FileEntry entry = entries.get(path);
+			if(entry != null && entry.size == size 
+					&& entry.lastModified == lastModified) {
+				String sum = entry.sums.get(sumKey);
+				if(sum != null) {
+					return sum;
+				}
+			}
+			startGeneration = generation;
+		}
+		// Hash outside the lock; it can take as long as a transfer
+		String sum = compute(file, algorithm, start, end);
+		if(file.length() != size || file.lastModified() != lastModified) {
+			// Written to while we read it, so the sum may be of a mix of old
+			// and new data
+			myLog.l(Log.DEBUG, "Not caching checksum of changing file " + path);
+			return sum;
+		}
+		synchronized(this) {
+			if(generation != startGeneration) {
+				return sum;
+			}
+			FileEntry entry = entries.get(path);
+			if(entry == null || entry.size != size 
+					|| entry.lastModified != lastModified) {
+				entry = new FileEntry(size, lastModified);
+				entries.put(path, entry);
+			}
+			entry.sums.put(sumKey, sum);
+			if(path.indexOf('\t') != -1 || path.indexOf('\n') != -1) {
+				// Such a name would corrupt the journal, keep it in memory
+				return sum;
+			}
+			appendToJournal("+\t" + path + "\t" + size + "\t" + lastModified 
+					+ "\t" + sumKey + "\t" + sum);
+		}
+		return sum;
+	}
+	
+	/**
+	 * Forgets every checksum for a file, or for everything under it if it is
+	 * a directory. Called by commands that change or remove files.
+	 */
+	public synchronized void invalidate(File file) {
+		String path;
+		try {
+			path = file.getCanonicalPath();
+		} catch (IOException e) {
+			path = file.getAbsolutePath();
+		}
+		generation++;
+		boolean removed = entries.remove(path) != null;
+		String prefix = path + "/";
+		Iterator<String> paths = entries.keySet().iterator();
+		while(paths.hasNext()) {
+			if(paths.next().startsWith(prefix)) {
+				paths.remove();
+				removed = true;
+			}
+		}
+		if(removed) {
+			appendToJournal("-\t" + path);
+		}
+	}
+	
+	private static String compute(File file, String algorithm, long start,
+			long end) throws IOException {
+		MessageDigest digest = null;
+		CRC32 crc = null;
+		if(algorithm.equals("CRC32")) {
+			crc = new CRC32();
+		} else {
+			try {
+				digest = MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException("No provider for " + algorithm);
+			}
+		}
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			// Large sequential reads keep the storage busy and the number of
+			// system calls low
+			byte[] buffer = new byte[Defaults.getHashBufferSize()];
+			in.seek(start);
+			long remaining = end - start;
+			while(remaining > 0) {
+				int numRead = in.read(buffer, 0, 
+						(int)Math.min(buffer.length, remaining));
+				if(numRead == -1) {
+					break;
+				}
+				if(crc != null) {
+					crc.update(buffer, 0, numRead);
+				} else {
+					digest.update(buffer, 0, numRead);
+				}
+				remaining -= numRead;
+			}
+		} finally {
+			in.close();
+		}
+		if(crc != null) {
+			return String.format("%08x", crc.getValue());
+		}
+		byte[] bytes = digest.digest();
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for(byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+	
+	/**
+	 * Replays the journal into memory
+	 */
+	private void load() {
+		if(journalFile == null || !journalFile.exists()) {
+			return;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(journalFile), "UTF-8"));
+			String line;
+			while((line = reader.readLine()) != null) {
+				journalLines++;
+				String[] fields = line.split("\t");
+				if(fields.length == 2 && fields[0].equals("-")) {
+					entries.remove(fields[1]);
+					String prefix = fields[1] + "/";
+					Iterator<String> paths = entries.keySet().iterator();
+					while(paths.hasNext()) {
+						if(paths.next().startsWith(prefix)) {
+							paths.remove();
+						}
+					}
+				} else if(fields.length == 6 && fields[0].equals("+")) {
+					long size = Long.parseLong(fields[2]);
+					long lastModified = Long.parseLong(fields[3]);
+					FileEntry entry = entries.get(fields[1]);
+					if(entry == null || entry.size != size 
+							|| entry.lastModified != lastModified) {
+						entry = new FileEntry(size, lastModified);
+						entries.put(fields[1], entry);
+					}
+					entry.sums.put(fields[4], fields[5]);
+				}
+			}
+		} catch (Exception e) {
+			// A damaged journal only costs us the cached results
+			myLog.l(Log.INFO, "Discarding unreadable checksum cache");
+			entries.clear();
+		} finally {
+			try {
+				if(reader != null) {
+					reader.close();
+				}
+			} catch (IOException e) {}
+		}
+	}
+	
+	private void appendToJournal(String line) {
+		if(journalFile == null) {
+			return;
+		}
+		try {
+			if(journalLines > 4 * MAX_FILES) {
+				rewriteJournal();
+			}
+			if(journal == null) {
+				journal = new OutputStreamWriter(
+						new FileOutputStream(journalFile, true), "UTF-8");
+			}
+			journal.write(line);
+			journal.write('\n');
+			journal.flush();
+			journalLines++;
+		} catch (IOException e) {
+			myLog.l(Log.INFO, "Couldn't write checksum cache: " + e);
+		}
+	}
+	
+	/**
+	 * Replaces the journal with one line per live checksum
+	 */
+	private void rewriteJournal() throws IOException {
+		if(journal != null) {
+			journal.close();
+			journal = null;
+		}
+		File tmpFile = new File(journalFile.getPath() + ".tmp");
+		Writer writer = new OutputStreamWriter(
+				new FileOutputStream(tmpFile), "UTF-8");
+		int lines = 0;
+		try {
+			for(Map.Entry<String, FileEntry> file : entries.entrySet()) {
+				FileEntry entry = file.getValue();
+				for(Map.Entry<String, String> sum : entry.sums.entrySet()) {
+					writer.write("+\t" + file.getKey() + "\t" + entry.size + "\t" 
+							+ entry.lastModified + "\t" + sum.getKey() + "\t" 
+							+ sum.getValue() + "\n");
+					lines++;
+				}
+			}
+		} finally {
+			writer.close();
+		}
+		if(!tmpFile.renameTo(journalFile)) {
+			throw new IOException("Couldn't replace checksum journal");
+		}
+		journalLines = lines;
+	}
+}
@@ -0,0 +1,70 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.io.File;
+
+import android.util.Log;
+
+/**
+ * ALLO tells us how many bytes the next STOR or APPE will send, so that the
+ * space can be reserved before any data arrives. Clients often send it out 
+ * of habit, so a size that fits is always accepted, and the optional record
+ * size ("R n") is ignored. Where FileSpace can't reserve space, ALLO is 
+ * only advisory, and we say so with a 202 as RFC 959 allows.
+ */
+public class CmdALLO extends FtpCmd implements Runnable {
+	protected String input;
+	
+	public CmdALLO(SessionThread sessionThread, String input) {
+		super(sessionThread, CmdALLO.class.toString());
+		this.input = input;
+	}
+	
+	public void run() {
+		String param = getParameter(input);
+		long size;
+		try {
+			size = Long.parseLong(param.split(" ")[0]);
+		} catch (NumberFormatException e) {
+			size = -1;
+		}
+		if(size < 0) {
+			myLog.l(Log.INFO, "Bad ALLO size: " + param);
+			sessionThread.writeString("501 ALLO requires a non-negative byte count\r\n");
+			return;
+		}
+		File root = Globals.getChrootDir();
+		if(root != null && size > root.getUsableSpace()) {
+			myLog.l(Log.INFO, "ALLO of " + size + " bytes won't fit");
+			sessionThread.writeString("552 Not enough storage space\r\n");
+			return;
+		}
+		sessionThread.setAllocationSize(size);
+		if(FileSpace.isSupported()) {
+			sessionThread.writeString("200 " + size + " bytes will be reserved\r\n");
+		} else {
+			sessionThread.writeString("202 No storage allocation necessary\r\n");
+		}
+		if(myLog.isLoggable(Log.DEBUG)) {
+			myLog.l(Log.DEBUG, "ALLO size set to " + size);
+		}
+	}
+}
@@ -37,53 +37,116 @@ public abstract class CmdAbstractListing extends FtpCmd {
 		super(sessionThread, CmdAbstractListing.class.toString());
 	}
 	
+	public boolean usesDataSocket() {
+		return true;
+	}
+	
 	abstract String makeLsString(File file);
 	
-	// Creates a directory listing by finding the contents of the directory,
-	// calling makeLsString on each file, and concatenating the results.
-	// Returns an error string if failure, returns null on success. May be
-	// called by CmdLIST or CmdNLST, since they each override makeLsString
-	// in a different way.
-	public String listDirectory(StringBuilder response, File dir) {
-		if(!dir.isDirectory()) {
-			return "500 Internal error, listDirectory on non-directory\r\n";
-		}
-		myLog.l(Log.DEBUG, "Listing directory: " + dir.toString());
-		
-		// Get a listing of all files and directories in the path
-		File[] entries = dir.listFiles();
-		if(entries == null) {
-			return "500 Couldn't list directory. Check config and mount status.\r\n";
-		}
-		myLog.l(Log.DEBUG, "Dir len " + entries.length);
-		for(File entry : entries) {
-			String curLine = makeLsString(entry);
-			if(curLine != null) {
-				response.append(curLine);
-			}
+	// Adds the listing line for one directory entry to the writer. Listings
+	// that can format straight to bytes override this to skip building a
+	// String per entry.
+	protected void writeEntry(ListingWriter writer, File file) {
+		String curLine = makeLsString(file);
+		if(curLine != null) {
+			writer.write(curLine);
 		}
-		return null;
 	}
-
-	// Send the directory listing over the data socket. Used by CmdLIST and
-	// CmdNLST.
+	
+	// Sends a listing of fileToList over the data socket, streaming one
+	// makeLsString line per entry if it is a directory. Entries are encoded
+	// into a fixed size buffer that is sent whenever it fills up. Listings
+	// small enough for the ListingCache are also kept there, and served from
+	// it while the directory is unchanged. May be called by CmdLIST or
+	// CmdNLST, since they each override makeLsString in a different way.
 	// Returns an error string on failure, or returns null if successful.
-	protected String sendListing(String listing) {
+	protected String sendListing(File fileToList) {
+		long start = System.nanoTime();
+		String[] names = null;
+		String singleLine = null;
+		String cacheKey = null;
+		long dirModified = 0;
+		byte[] cached = null;
+		if(fileToList.isDirectory()) {
+			if(myLog.isLoggable(Log.DEBUG)) {
+				myLog.l(Log.DEBUG, "Listing directory: " + fileToList.toString());
+			}
+			// Read the mtime before the entries, so that a change made while
+			// we list can only make the cached copy look stale, never fresh
+			dirModified = fileToList.lastModified();
+			cacheKey = ListingCache.makeKey(fileToList, getClass().getName(),
+					sessionThread.getEncoding());
+			if(cacheKey != null) {
+				cached = ListingCache.getInstance().get(cacheKey, dirModified);
+			}
+			if(cached == null) {
+				// Get the names of all files and directories in the path.
+				// Names are cheaper to hold than File objects for huge
+				// directories.
+				names = fileToList.list();
+				if(names == null) {
+					return "500 Couldn't list directory. Check config and mount status.\r\n";
+				}
+				if(myLog.isLoggable(Log.DEBUG)) {
+					myLog.l(Log.DEBUG, "Dir len " + names.length);
+				}
+			}
+		} else {
+			singleLine = makeLsString(fileToList);
+			if(singleLine == null) {
+				return "450 Couldn't list that file\r\n";
+			}
+		}
+		
 		if(sessionThread.startUsingDataSocket()) {
 			myLog.l(Log.DEBUG, "LIST/NLST done making socket");
 		} else {
 			sessionThread.closeDataSocket();
+			if(sessionThread.isTransferAborted()) {
+				return "426 Transfer aborted\r\n";
+			}
 			return "425 Error opening data socket\r\n";
 		}
 		String mode = sessionThread.isBinaryMode() ? "BINARY" : "ASCII";
 		sessionThread.writeString(
 				"150 Opening "+mode+" mode data connection for file list\r\n");
-		myLog.l(Log.DEBUG, "Sent code 150, sending listing string now");
-		if(!sessionThread.sendViaDataSocket(listing)) {
+		myLog.l(Log.DEBUG, "Sent code 150, streaming listing now");
+		ListingWriter writer = new ListingWriter(sessionThread);
+		if(cached != null) {
+			writer.write(cached, 0, cached.length);
+		} else if(names != null) {
+			if(cacheKey != null) {
+				writer.startCapture(ListingCache.getMaxEntryBytes());
+			}
+			for(String name : names) {
+				File entry = new File(fileToList, name);
+				if(UploadJournal.isPartName(name) 
+						&& UploadJournal.getInstance().isHiddenPart(entry)) {
+					// The journal's, see UploadJournal
+					continue;
+				}
+				writeEntry(writer, entry);
+				if(writer.hasFailed()) {
+					break;
+				}
+			}
+		} else {
+			writer.write(singleLine);
+		}
+		if(!writer.flush()) {
 			myLog.l(Log.DEBUG, "sendViaDataSocket failure");
 			sessionThread.closeDataSocket();
 			return "426 Data socket or network error\r\n";
 		}
+		if(writer.getFirstSendTime() != 0) {
+			Metrics.recordListFirstByte(writer.getFirstSendTime() - start);
+		}
+		if(names != null && cacheKey != null) {
+			byte[] captured = writer.getCaptured();
+			if(captured != null) {
+				ListingCache.getInstance().put(cacheKey, dirModified, captured);
+			}
+		}
 		sessionThread.closeDataSocket();
 		myLog.l(Log.DEBUG, "Listing sendViaDataSocket success");
 		sessionThread.writeString("226 Data transmission OK\r\n");
@@ -26,8 +26,10 @@ package org.swiftp;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import android.util.Log;
 
@@ -39,15 +41,32 @@ abstract public class CmdAbstractStore extends FtpCmd {
 		super(sessionThread, CmdAbstractStore.class.toString());
 	}
 	
+	public boolean usesDataSocket() {
+		return true;
+	}
+	
 	public void doStorOrAppe(String param, boolean append) {
-		myLog.l(Log.DEBUG, "STOR/APPE executing with append=" + append);
+		if(myLog.isLoggable(Log.DEBUG)) {
+			myLog.l(Log.DEBUG, "STOR/APPE executing with append=" + append);
+		}
 		File storeFile = inputPathToChrootedFile(sessionThread.getWorkingDir(), param);
+		// Where the data actually goes. STOR writes to a part file that only
+		// replaces storeFile once the upload is complete.
+		File writeFile = storeFile;
+		UploadJournal.Upload upload = null;
 		
 		String errString = null;
-		FileOutputStream out = null;
-		//DedicatedWriter dedicatedWriter = null;
-//		int origPriority = Thread.currentThread().getPriority();
-//		myLog.l(Log.DEBUG, "STOR original priority: " + origPriority);
+		RandomAccessFile out = null;
+		DedicatedWriter writer = null;
+		long startBytes = 0, startTime = 0;
+		// A restart offset from REST makes STOR resume a partial upload. APPE
+		// always writes at the end of the file, so it just discards it.
+		long offset = append ? 0 : sessionThread.getRestartOffset();
+		sessionThread.setRestartOffset(0);
+		// Space announced by ALLO only applies to this upload
+		long allocation = sessionThread.getAllocationSize();
+		sessionThread.setAllocationSize(0);
+		boolean preallocated = false;
 		storing: {
 			// Get a normalized absolute path for the desired file
 			if(violatesChroot(storeFile)) {
@@ -58,19 +77,36 @@ abstract public class CmdAbstractStore extends FtpCmd {
 				errString = "451 Can't overwrite a directory\r\n";
 				break storing;
 			}
+			if(!append) {
+				upload = UploadJournal.getInstance().begin(storeFile, offset);
+				if(upload == null) {
+					errString = "450 File is being uploaded by another session\r\n";
+					break storing;
+				}
+				writeFile = upload.getFile();
+			}
 
+			FileChannel fileChannel;
 			try {
-				if(storeFile.exists()) {
-					if(!append) {
-						if(!storeFile.delete()) {
-							errString = "451 Couldn't truncate file\r\n";
-							break storing;
-						}
-						// Notify other apps that we just deleted a file
-						Util.deletedFileNotify(storeFile.getPath());
+				if(offset > writeFile.length()) {
+					errString = "554 Restart offset is past the end of the file\r\n";
+					break storing;
+				}
+				out = new RandomAccessFile(writeFile, "rw");
+				fileChannel = out.getChannel();
+				if(append) {
+					fileChannel.position(fileChannel.size());
+				} else if(offset == 0) {
+					// A part file left over from an upload we aren't resuming
+					fileChannel.truncate(0);
+				} else {
+					// Drop anything past the restart point, then write there
+					if(myLog.isLoggable(Log.DEBUG)) {
+						myLog.l(Log.DEBUG, "STOR restarting at " + offset);
 					}
+					fileChannel.truncate(offset);
+					fileChannel.position(offset);
 				}
-				out = new FileOutputStream(storeFile, append);
 			} catch(FileNotFoundException e) {
 				try {
 					errString = "451 Couldn't open file \"" + param + "\" aka \"" + 
@@ -79,128 +115,170 @@ abstract public class CmdAbstractStore extends FtpCmd {
 					errString = "451 Couldn't open file, nested exception\r\n";
 				}
 				break storing;
+			} catch(IOException e) {
+				errString = "451 Couldn't seek in file\r\n";
+				break storing;
 			}
 			if(!sessionThread.startUsingDataSocket()) {
-				errString = "425 Couldn't open data socket\r\n";
+				if(sessionThread.isTransferAborted()) {
+					errString = "426 Transfer aborted\r\n";
+				} else {
+					errString = "425 Couldn't open data socket\r\n";
+				}
 				break storing;
 			}
 			myLog.l(Log.DEBUG, "Data socket ready");
 			sessionThread.writeString("150 Data socket ready\r\n");
-			byte[] buffer = new byte[Defaults.getDataChunkSize()];
-			//dedicatedWriter = new DedicatedWriter(out);
-			//dedicatedWriter.start();  // start the writer thread executing
-			//myLog.l(Log.DEBUG, "Started DedicatedWriter");
-			int numRead;
-//			Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-//			int newPriority = Thread.currentThread().getPriority();
-//			myLog.l(Log.DEBUG, "New STOR prio: " + newPriority);
-			if(sessionThread.isBinaryMode() ) {
+			if(allocation > 0) {
+				// Reserving the space ALLO announced makes a full device fail
+				// the upload now rather than halfway, and keeps the file in
+				// one piece. It comes after the 150, so a slow filesystem
+				// can't hold up the reply. The unused part is cut off again 
+				// when the upload ends. Where space can't be reserved, see
+				// FileSpace, the upload goes ahead without it.
+				try {
+					long start = fileChannel.position();
+					preallocated = FileSpace.reserve(out.getFD(), start, allocation);
+				} catch(IOException e) {
+					myLog.l(Log.INFO, "Couldn't preallocate: " + e);
+					errString = "452 Insufficient storage space\r\n";
+					break storing;
+				}
+			}
+			startBytes = sessionThread.getBytesReceived();
+			startTime = System.nanoTime();
+			int chunkSize = Defaults.getDataChunkSize();
+			boolean binaryMode = sessionThread.isBinaryMode();
+			// In binary mode we receive straight into the writer's buffers.
+			// In ASCII mode each chunk is received here and translated into
+			// one of them.
+			AsciiCodec asciiCodec = null;
+			ByteBuffer received = null;
+			int bufferSize = chunkSize;
+			if(binaryMode) {
 				myLog.d("Mode is binary");
 			} else {
 				myLog.d("Mode is ascii");
+				asciiCodec = new AsciiCodec();
+				received = ByteBuffer.allocate(chunkSize);
+				bufferSize = AsciiCodec.maxDecodedLength(chunkSize);
 			}
-			int bytesSinceReopen = 0;
-			int bytesSinceFlush = 0;
-			while(true) {
-				/*if(dedicatedWriter.checkErrorFlag()) {
-					errString = "451 File IO problem\r\n";
-					break storing;
-				}*/
-				switch(numRead = sessionThread.receiveFromDataSocket(buffer)) {
-				case -1:
-					myLog.l(Log.DEBUG, "Returned from final read");
-					// We're finished reading
-					break storing; 
-				case 0: 
-					errString = "426 Couldn't receive data\r\n";
-					break storing;
-				case -2:
-					errString = "425 Could not connect data socket\r\n";
-					break storing;
-				default:
-//					myLog.d("Read " + numRead + " bytes from socket");
-					try {
-						//myLog.l(Log.DEBUG, "Enqueueing buffer of " + numRead);
-						//dedicatedWriter.enqueueBuffer(buffer, numRead);
-						if(sessionThread.isBinaryMode()) {
-							out.write(buffer, 0, numRead);
-						} else {
+			writer = new DedicatedWriter(fileChannel, 
+					Defaults.getStorWriteBehindBuffers(), bufferSize);
+			writer.start();
+			int numRead;
+			try {
+				while(true) {
+					ByteBuffer buffer;
+					if(received != null) {
+						buffer = received;
+						buffer.clear();
+					} else {
+						// Blocks while the writer is behind, which stops us
+						// reading and so slows the client down
+						buffer = writer.getBuffer();
+					}
+					switch(numRead = sessionThread.receiveFromDataSocket(buffer)) {
+					case -1:
+						myLog.l(Log.DEBUG, "Returned from final read");
+						// We're finished reading
+						if(asciiCodec != null) {
+							// A \r at the very end of the upload is kept
+							ByteBuffer tail = writer.getBuffer();
+							tail.limit(asciiCodec.finishDecode(tail.array()));
+							writer.write(tail);
+						}
+						writer.finish();
+						break storing; 
+					case 0: 
+						errString = "426 Couldn't receive data\r\n";
+						break storing;
+					case -2:
+						errString = "425 Could not connect data socket\r\n";
+						break storing;
+					default:
+						buffer.flip();
+						if(asciiCodec != null) {
 							// ASCII mode, substitute \r\n to \n
-							int startPos=0, endPos;
-							for(endPos = 0; endPos < numRead; endPos++ ) {
-								if(buffer[endPos] == '\r') {
-									// Our hacky method is to drop all \r
-									out.write(buffer, startPos, endPos-startPos);
-									startPos = endPos+1;
-								}
-							}
-							// Write last part of buffer as long as there was something
-							// left after handling the last \r
-							if(startPos < numRead) {
-								out.write(buffer, startPos, endPos-startPos);
-							}
+							ByteBuffer decoded = writer.getBuffer();
+							decoded.limit(asciiCodec.decode(buffer.array(), 0,
+									numRead, decoded.array()));
+							buffer = decoded;
 						}
-						
-						// Attempted bugfix for transfer stalls. Reopen file periodically.
-						//bytesSinceReopen += numRead;
-						//if(bytesSinceReopen >= Defaults.bytes_between_reopen &&
-						//		Defaults.do_reopen_hack) {
-						//	myLog.d("Closing and reopening file: " + storeFile);
-						//	out.close();
-						//	out = new FileOutputStream(storeFile, true/*append*/);
-						//	bytesSinceReopen = 0;
-						//}
-						
-						// Attempted bugfix for transfer stalls. Flush file periodically.
-						//bytesSinceFlush += numRead;
-						//if(bytesSinceFlush >= Defaults.bytes_between_flush &&
-						//		Defaults.do_flush_hack) {
-						//	myLog.d("Flushing: " + storeFile);
-						//	out.flush();
-						//	bytesSinceFlush = 0;
-						//}
-						
-						// If this transfer fails, a later APPEND operation might be
-						// received. In that case, we will need to have flushed the
-						// previous writes in order for the append to work. The
-						// filesystem on my G1 doesn't seem to recognized unflushed
-						// data when appending.
-						out.flush();
-						
-					} catch (IOException e) {
-						errString = "451 File IO problem. Device might be full.\r\n";
-						myLog.d("Exception while storing: " + e);
-						myLog.d("Message: " + e.getMessage());
-						myLog.d("Stack trace: ");
-						StackTraceElement[] traceElems = e.getStackTrace();
-						for(StackTraceElement elem : traceElems) {
-							myLog.d(elem.toString());
+						writer.write(buffer);
+						if(upload != null) {
+							// What we received, which is near enough to what
+							// the part file will hold
+							upload.progress(offset + sessionThread.getBytesReceived() 
+									- startBytes);
 						}
-						break storing;
+						break;
 					}
-					break;
 				}
+			} catch (IOException e) {
+				// Either a write failed, maybe long after its data arrived,
+				// or finish() found that one had
+				errString = "451 File IO problem. Device might be full.\r\n";
+				myLog.d("Exception while storing: " + e);
+				myLog.d("Message: " + e.getMessage());
+				myLog.d("Stack trace: ");
+				StackTraceElement[] traceElems = e.getStackTrace();
+				for(StackTraceElement elem : traceElems) {
+					myLog.d(elem.toString());
+				}
+				break storing;
+			}
+		}
+		if(writer != null) {
+			// Nothing may write to the file once we truncate or close it.
+			// This does nothing if finish() already returned.
+			writer.abort();
+		}
+		if(preallocated) {
+			// Cut off the part of the ALLO space that wasn't used, so the
+			// length is right for the client and for a REST to resume at
+			try {
+				FileChannel fileChannel = out.getChannel();
+				fileChannel.truncate(fileChannel.position());
+			} catch (IOException e) {
+				myLog.l(Log.INFO, "Couldn't trim preallocated file: " + e);
+			}
+		}
+		if(errString == null && upload != null && upload.isPartial()) {
+			// The part file replaces the target by a rename, so its data
+			// must be on storage first. Otherwise a crash could leave the
+			// target renamed over but empty.
+			try {
+				out.getChannel().force(true);
+			} catch (IOException e) {
+				errString = "451 Couldn't sync the upload to storage\r\n";
 			}
 		}
-//		// Clean up the dedicated writer thread
-//		if(dedicatedWriter != null) {
-//			dedicatedWriter.exit();  // set its exit flag
-//			dedicatedWriter.interrupt(); // make sure it wakes up to process the flag
-//		}
-//		Thread.currentThread().setPriority(origPriority);
 		try {
-//			if(dedicatedWriter != null) {
-//				dedicatedWriter.exit();
-//			}
 			if(out != null) {
 				out.close();
 			}
 		} catch (IOException e) {}
+		if(upload != null) {
+			if(errString != null) {
+				// Keep what we received for a REST and STOR to continue
+				UploadJournal.getInstance().suspend(upload);
+			} else if(!UploadJournal.getInstance().commit(upload)) {
+				errString = "451 Couldn't replace file with the upload\r\n";
+			}
+		}
+		if(out != null) {
+			// Even a failed upload may have changed the file
+			ChecksumCache.getInstance().invalidate(storeFile);
+			ListingCache.getInstance().invalidateParent(storeFile);
+		}
 		
 		if(errString != null) {
 			myLog.l(Log.INFO, "STOR error: " + errString.trim());
 			sessionThread.writeString(errString);
 		} else {
+			Metrics.recordStor(sessionThread.getBytesReceived() - startBytes,
+					System.nanoTime() - startTime);
 			sessionThread.writeString("226 Transmission complete\r\n");
 			// Notify the music player (and possibly others) that a few file has
 			// been uploaded.
@@ -0,0 +1,149 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.util.Log;
+
+/**
+ * The base of XCRC, XMD5, XSHA1, XSHA256 and XSHA512, which each return one
+ * kind of checksum of a file. They take the file name, optionally followed by
+ * a start offset and an exclusive end offset. The name may be quoted, which
+ * clients do when it contains spaces.
+ */
+abstract public class CmdAbstractXHash extends FtpCmd implements Runnable {
+	protected String input;
+	protected String algorithm;
+	
+	public CmdAbstractXHash(SessionThread sessionThread, String input, 
+			String algorithm, String logName) {
+		super(sessionThread, logName);
+		this.input = input;
+		this.algorithm = algorithm;
+	}
+	
+	public void run() {
+		if(myLog.isLoggable(Log.DEBUG)) {
+			myLog.l(Log.DEBUG, algorithm + " hash executing");
+		}
+		String param = getParameter(input);
+		String errString = null;
+		String sum = null;
+		mainblock: {
+			String name = param;
+			long start = 0, end = -1;
+			String[] splits = null;
+			if(param.startsWith("\"")) {
+				int close = param.indexOf('"', 1);
+				if(close == -1) {
+					errString = "501 Unterminated file name\r\n";
+					break mainblock;
+				}
+				name = param.substring(1, close);
+				String rest = param.substring(close + 1).trim();
+				splits = rest.length() == 0 ? new String[0] : rest.split(" +");
+			} else if(!inputPathToChrootedFile(sessionThread.getWorkingDir(), 
+					param).exists()) {
+				// Maybe the name is followed by a range. Peel off up to two
+				// trailing numbers.
+				int cut = param.length();
+				for(int i = 0; i < 2; i++) {
+					int space = param.lastIndexOf(' ', cut - 1);
+					if(space <= 0 || !isNumber(param.substring(space + 1, cut))) {
+						break;
+					}
+					cut = space;
+				}
+				name = param.substring(0, cut);
+				String rest = param.substring(cut).trim();
+				splits = rest.length() == 0 ? new String[0] : rest.split(" +");
+			}
+			if(splits != null) {
+				try {
+					if(splits.length > 0) {
+						start = Long.parseLong(splits[0]);
+					}
+					if(splits.length > 1) {
+						end = Long.parseLong(splits[1]);
+					}
+				} catch (NumberFormatException e) {
+					start = -1;
+				}
+				if(splits.length > 2 || start < 0 || (end != -1 && end < start)) {
+					errString = "501 Bad range\r\n";
+					break mainblock;
+				}
+			}
+			File file = inputPathToChrootedFile(sessionThread.getWorkingDir(), name);
+			if(violatesChroot(file)) {
+				errString = "550 Invalid name or chroot violation\r\n";
+				break mainblock;
+			} else if(!file.exists()) {
+				errString = "550 File does not exist\r\n";
+				break mainblock;
+			} else if(!file.isFile()) {
+				errString = "550 Can only hash a plain file\r\n";
+				break mainblock;
+			}
+			long length = file.length();
+			if(start > length || end > length) {
+				errString = "501 Range is past the end of the file\r\n";
+				break mainblock;
+			}
+			try {
+				sum = ChecksumCache.getInstance().getChecksum(file, algorithm,
+						start, end);
+			} catch (IOException e) {
+				myLog.l(Log.INFO, "Hash failed reading file: " + e);
+				errString = "450 Error reading file\r\n";
+				break mainblock;
+			}
+		}
+		if(errString != null) {
+			sessionThread.writeString(errString);
+		} else {
+			sessionThread.writeString("250 " + sum.toUpperCase() + "\r\n");
+		}
+		if(myLog.isLoggable(Log.DEBUG)) {
+			myLog.l(Log.DEBUG, algorithm + " hash finished");
+		}
+	}
+	
+	private static boolean isNumber(String s) {
+		if(s.length() == 0) {
+			return false;
+		}
+		for(int i = 0; i < s.length(); i++) {
+			if(s.charAt(i) < '0' || s.charAt(i) > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Hashing a large file takes as long as sending it
+	 */
+	public boolean usesDataSocket() {
+		return true;
+	}
+}
@@ -48,6 +48,8 @@ public class CmdDELE extends FtpCmd implements Runnable {
 			sessionThread.writeString(errString);
 			myLog.l(Log.INFO, "DELE failed: " + errString.trim());
 		} else {
+			ChecksumCache.getInstance().invalidate(storeFile);
+			ListingCache.getInstance().invalidateParent(storeFile);
 			sessionThread.writeString("250 File successfully deleted\r\n");
 			Util.deletedFileNotify(storeFile.getPath());
 		}
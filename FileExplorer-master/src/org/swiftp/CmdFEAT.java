@@ -32,6 +32,20 @@ public class CmdFEAT extends FtpCmd implements Runnable {
 		//sessionThread.writeString("211 No extended features\r\n");
 		sessionThread.writeString("211-Features supported\r\n");
 		sessionThread.writeString(" UTF8\r\n"); // advertise UTF8 support (fixes bug 14)
+		sessionThread.writeString(" REST STREAM\r\n");
+		sessionThread.writeString(" MODE Z\r\n");
+		sessionThread.writeString(" MLST " + CmdMLSD.FACTS + "\r\n");
+		StringBuilder hash = new StringBuilder(" HASH ");
+		for(String algorithm : ChecksumCache.ALGORITHMS) {
+			hash.append(algorithm);
+			if(algorithm.equals(sessionThread.getHashAlgorithm())) {
+				hash.append('*'); // the one currently selected
+			}
+			hash.append(';');
+		}
+		hash.setLength(hash.length() - 1);
+		sessionThread.writeString(hash.append("\r\n").toString());
+		sessionThread.writeString(" RANG STREAM\r\n");
 		sessionThread.writeString("211 End\r\n");
 		myLog.l(Log.DEBUG, "Gave FEAT response");
 	}
@@ -0,0 +1,95 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.util.Log;
+
+/**
+ * HASH returns a checksum of a file, or of the byte range set by RANG, in
+ * the algorithm chosen with OPTS HASH.
+ */
+public class CmdHASH extends FtpCmd implements Runnable {
+	protected String input;
+	
+	public CmdHASH(SessionThread sessionThread, String input) {
+		super(sessionThread, CmdHASH.class.toString());
+		this.input = input;
+	}
+	
+	public void run() {
+		myLog.l(Log.DEBUG, "HASH executing");
+		String param = getParameter(input);
+		String errString = null;
+		String response = null;
+		String algorithm = sessionThread.getHashAlgorithm();
+		long start = sessionThread.getHashRangeStart();
+		long end = sessionThread.getHashRangeEnd();
+		// Like REST, a range only applies to the next command
+		sessionThread.setHashRange(0, -1);
+		mainblock: {
+			File file = inputPathToChrootedFile(sessionThread.getWorkingDir(), param);
+			if(violatesChroot(file)) {
+				errString = "550 Invalid name or chroot violation\r\n";
+				break mainblock;
+			} else if(!file.exists()) {
+				errString = "550 File does not exist\r\n";
+				break mainblock;
+			} else if(!file.isFile()) {
+				errString = "553 Can only hash a plain file\r\n";
+				break mainblock;
+			}
+			long length = file.length();
+			if(end == -1) {
+				end = length;
+			}
+			if(start > length || end > length) {
+				errString = "556 Range is past the end of the file\r\n";
+				break mainblock;
+			}
+			String sum;
+			try {
+				sum = ChecksumCache.getInstance().getChecksum(file, algorithm,
+						start, end);
+			} catch (IOException e) {
+				myLog.l(Log.INFO, "HASH failed reading file: " + e);
+				errString = "450 Error reading file\r\n";
+				break mainblock;
+			}
+			response = "213 " + algorithm + " " + start + "-" 
+					+ Math.max(end - 1, start) + " " + sum + " " + param + "\r\n";
+		}
+		if(errString != null) {
+			sessionThread.writeString(errString);
+		} else {
+			sessionThread.writeString(response);
+		}
+		myLog.l(Log.DEBUG, "HASH finished");
+	}
+	
+	/**
+	 * Hashing a large file takes as long as sending it
+	 */
+	public boolean usesDataSocket() {
+		return true;
+	}
+}
@@ -27,16 +27,17 @@ along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
 package org.swiftp;
 
 import java.io.File;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
+import java.io.UnsupportedEncodingException;
 
 import android.util.Log;
 
 public class CmdLIST extends CmdAbstractListing implements Runnable {
 	// The approximate number of milliseconds in 6 months
-	public final static long MS_IN_SIX_MONTHS = 6 * 30 * 24 * 60 * 60 * 1000;
+	public final static long MS_IN_SIX_MONTHS = LsFormatter.MS_IN_SIX_MONTHS;
 	private String input;
+	// Reused for every entry of a listing
+	private FileStat stat = new FileStat();
+	private LsFormatter formatter = null;
 	
 	public CmdLIST(SessionThread sessionThread, String input) {
 		super(sessionThread, input);
@@ -48,10 +49,14 @@ public class CmdLIST extends CmdAbstractListing implements Runnable {
 		
 		mainblock: {
 			String param = getParameter(input);
-			myLog.d("LIST parameter: " + param);
+			if(myLog.isLoggable(Log.DEBUG)) {
+				myLog.d("LIST parameter: " + param);
+			}
 			while(param.startsWith("-")) {
 				// Skip all dashed -args, if present
-				myLog.d("LIST is skipping dashed arg " + param);
+				if(myLog.isLoggable(Log.DEBUG)) {
+					myLog.d("LIST is skipping dashed arg " + param);
+				}
 				param = getParameter(param);
 			}
 			File fileToList = null;
@@ -68,22 +73,7 @@ public class CmdLIST extends CmdAbstractListing implements Runnable {
 					break mainblock;
 				}				
 			}
-			String listing;
-			if(fileToList.isDirectory()) {
-				StringBuilder response = new StringBuilder();
-				errString = listDirectory(response, fileToList);
-				if(errString != null) {
-					break mainblock;
-				}
-				listing = response.toString();
-			} else {
-				listing = makeLsString(fileToList);
-				if(listing == null) {
-					errString = "450 Couldn't list that file\r\n";
-					break mainblock;
-				}
-			}
-			errString = sendListing(listing);
+			errString = sendListing(fileToList);
 			if(errString != null) {
 				break mainblock;
 			}
@@ -102,16 +92,30 @@ public class CmdLIST extends CmdAbstractListing implements Runnable {
 	// Generates a line of a directory listing in the traditional /bin/ls
 	// format.
 	protected String makeLsString(File file) {
-		StringBuilder response = new StringBuilder();
-		
-		if(!file.exists()) {
-			staticLog.l(Log.INFO, "makeLsString had nonexistent file");
+		if(!formatEntry(file)) {
 			return null;
 		}
-
-		// See Daniel Bernstein's explanation of /bin/ls format at:
-		// http://cr.yp.to/ftp/list/binls.html
-		// This stuff is almost entirely based on his recommendations.
+		try {
+			return new String(formatter.getBytes(), 0, formatter.getLength(),
+					sessionThread.getEncoding());
+		} catch (UnsupportedEncodingException e) {
+			return new String(formatter.getBytes(), 0, formatter.getLength());
+		}
+	}
+	
+	protected void writeEntry(ListingWriter writer, File file) {
+		if(formatEntry(file)) {
+			writer.write(formatter.getBytes(), 0, formatter.getLength());
+		}
+	}
+	
+	// Formats one entry into the formatter's buffer, returning false if the
+	// entry should be left out of the listing.
+	private boolean formatEntry(File file) {
+		if(!stat.stat(file).exists) {
+			staticLog.l(Log.INFO, "makeLsString had nonexistent file");
+			return false;
+		}
 		
 		String lastNamePart = file.getName();
 		// Many clients can't handle files containing these symbols
@@ -119,45 +123,14 @@ public class CmdLIST extends CmdAbstractListing implements Runnable {
 		   lastNamePart.contains("/"))
 		{
 			staticLog.l(Log.INFO, "Filename omitted due to disallowed character");
-			return null;
-		} else {
-			// The following line generates many calls in large directories
-			//staticLog.l(Log.DEBUG, "Filename: " + lastNamePart);
+			return false;
 		}
-				
-		
-		if(file.isDirectory()) {
-			response.append("drwxr-xr-x 1 owner group");
-		} else {
-			// todo: think about special files, symlinks, devices
-			response.append("-rw-r--r-- 1 owner group");
-		}
-		
-		// The next field is a 13-byte right-justified space-padded file size
-		long fileSize = file.length();
-		String sizeString = new Long(fileSize).toString();
-		int padSpaces = 13 - sizeString.length();
-		while(padSpaces-- > 0) {
-			response.append(' ');
-		}
-		response.append(sizeString);
-		
-		// The format of the timestamp varies depending on whether the mtime
-		// is 6 months old
-		long mTime = file.lastModified();
-		SimpleDateFormat format;
-		// Temporarily commented out.. trying to fix Win7 display bug
-		if(System.currentTimeMillis() - mTime > MS_IN_SIX_MONTHS) {
-			// The mtime is less than 6 months ago
-			format = new SimpleDateFormat(" MMM dd HH:mm ", Locale.US);
-		} else {
-			// The mtime is more than 6 months ago
-			format = new SimpleDateFormat(" MMM dd  yyyy ", Locale.US);
+		if(formatter == null) {
+			formatter = new LsFormatter(sessionThread.getEncoding());
 		}
-		response.append(format.format(new Date(file.lastModified())));
-		response.append(lastNamePart);
-		response.append("\r\n");
-		return response.toString();
+		formatter.format(stat.isDirectory, stat.size, stat.lastModified,
+				lastNamePart);
+		return true;
 	}
 
 }
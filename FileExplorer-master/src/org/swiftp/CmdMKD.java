@@ -56,6 +56,7 @@ public class CmdMKD extends FtpCmd implements Runnable {
 				errString = "550 Error making directory (permissions?)\r\n";
 				break mainblock;
 			}
+			ListingCache.getInstance().invalidateParent(toCreate);
 		}
 		if(errString != null) {
 			sessionThread.writeString(errString);
@@ -0,0 +1,123 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/* MLSD lists a directory in the machine-readable format of RFC 3659. The
+ * data connection and streaming are handled by CmdAbstractListing, this
+ * class just formats one line of facts per entry.
+ */
+
+package org.swiftp;
+
+import java.io.File;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import android.util.Log;
+
+public class CmdMLSD extends CmdAbstractListing implements Runnable {
+	// The facts we support, as advertised by FEAT. All are always sent.
+	public static final String FACTS = "type*;size*;modify*;perm*;";
+	private String input;
+	// Reused for every entry of a listing
+	private FileStat stat = new FileStat();
+	private StringBuilder line = new StringBuilder();
+	private Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+	
+	public CmdMLSD(SessionThread sessionThread, String input) {
+		super(sessionThread, input);
+		this.input = input;
+	}
+	
+	public void run() {
+		String errString = null;
+		
+		mainblock: {
+			String param = getParameter(input);
+			File dirToList;
+			if(param.equals("")) {
+				dirToList = sessionThread.getWorkingDir();
+			} else {
+				dirToList = inputPathToChrootedFile(sessionThread.getWorkingDir(), param);
+				if(violatesChroot(dirToList)) {
+					errString = "550 Listing target violates chroot\r\n";
+					break mainblock;
+				}
+			}
+			if(!dirToList.isDirectory()) {
+				errString = "501 MLSD target is not a directory\r\n";
+				break mainblock;
+			}
+			errString = sendListing(dirToList);
+		}
+		
+		if(errString != null) {
+			sessionThread.writeString(errString);
+			myLog.l(Log.DEBUG, "MLSD failed with: " + errString);
+		} else {
+			myLog.l(Log.DEBUG, "MLSD completed OK");
+		}
+	}
+	
+	protected String makeLsString(File file) {
+		if(!stat.stat(file).exists) {
+			staticLog.l(Log.INFO, "makeLsString had nonexistent file");
+			return null;
+		}
+		line.setLength(0);
+		appendFacts(line, stat, utc);
+		line.append(' ').append(file.getName()).append("\r\n");
+		return line.toString();
+	}
+	
+	/**
+	 * Appends the RFC 3659 facts for one file, each terminated by ';'. Shared
+	 * with CmdMLST.
+	 */
+	static void appendFacts(StringBuilder sb, FileStat stat, Calendar utc) {
+		if(stat.isDirectory) {
+			sb.append("type=dir;");
+		} else {
+			sb.append("type=file;size=").append(stat.size).append(';');
+		}
+		utc.setTimeInMillis(stat.lastModified);
+		sb.append("modify=");
+		appendPadded(sb, utc.get(Calendar.YEAR), 4);
+		appendPadded(sb, utc.get(Calendar.MONTH) + 1, 2);
+		appendPadded(sb, utc.get(Calendar.DAY_OF_MONTH), 2);
+		appendPadded(sb, utc.get(Calendar.HOUR_OF_DAY), 2);
+		appendPadded(sb, utc.get(Calendar.MINUTE), 2);
+		appendPadded(sb, utc.get(Calendar.SECOND), 2);
+		sb.append(";perm=");
+		if(stat.isDirectory) {
+			sb.append(stat.writable ? "cdeflmp" : "el");
+		} else {
+			sb.append(stat.writable ? "adfrw" : "r");
+		}
+		sb.append(';');
+	}
+	
+	private static void appendPadded(StringBuilder sb, int value, int width) {
+		for(int limit = 10, i = 1; i < width; i++, limit *= 10) {
+			if(value < limit) {
+				sb.append('0');
+			}
+		}
+		sb.append(value);
+	}
+}
@@ -0,0 +1,54 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import android.util.Log;
+
+/**
+ * MODE S is the plain stream mode every client expects. MODE Z compresses
+ * the data connection with deflate, as most clients that list it in FEAT
+ * understand. The level is set with OPTS MODE Z LEVEL.
+ */
+public class CmdMODE extends FtpCmd implements Runnable {
+	String input;
+	
+	public CmdMODE(SessionThread sessionThread, String input) {
+		super(sessionThread, CmdMODE.class.toString());
+		this.input = input;
+	}
+	
+	public void run() {
+		String output;
+		myLog.l(Log.DEBUG, "MODE executing");
+		String param = getParameter(input).toUpperCase();
+		if(param.equals("S")) {
+			output = "200 Mode set to S\r\n";
+			sessionThread.setCompressedMode(false);
+		} else if(param.equals("Z")) {
+			output = "200 Mode set to Z\r\n";
+			sessionThread.setCompressedMode(true);
+		} else {
+			output = "504 Only MODE S and MODE Z are supported\r\n";
+		}
+		sessionThread.writeString(output);
+		myLog.l(Log.DEBUG, "MODE complete");
+	}
+
+}
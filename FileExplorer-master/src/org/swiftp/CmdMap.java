@@ -19,15 +19,46 @@ along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
 
 package org.swiftp;
 
+import java.lang.reflect.Constructor;
+
 public class CmdMap {
 	protected Class<? extends FtpCmd> cmdClass;
 	String name;
+	// Set for the few commands a client may send before logging in
+	boolean allowedBeforeLogin;
+	// The name packed by FtpCmd.packVerb, used as the lookup key
+	long packedName;
+	// Time taken by each run of this command, in microseconds
+	final Histogram latency;
+	private Constructor<? extends FtpCmd> constructor;
 	
 	
 	public CmdMap(String name, Class<? extends FtpCmd> cmdClass) {
+		this(name, cmdClass, false);
+	}
+
+	public CmdMap(String name, Class<? extends FtpCmd> cmdClass,
+			boolean allowedBeforeLogin) {
 		super();
 		this.name = name;
-		this.cmdClass = cmdClass;
+		this.allowedBeforeLogin = allowedBeforeLogin;
+		this.latency = Metrics.commandLatency(name);
+		setCommand(cmdClass);
+	}
+
+	/**
+	 * Creates a new instance of the command for one line of input, using
+	 * the (SessionThread, String) constructor every FtpCmd has.
+	 */
+	public FtpCmd newInstance(SessionThread sessionThread, String input) {
+		FtpCmd cmd;
+		try {
+			cmd = constructor.newInstance(sessionThread, input);
+		} catch (Exception e) {
+			throw new RuntimeException("Can't instantiate " + cmdClass, e);
+		}
+		cmd.cmdMap = this;
+		return cmd;
 	}
 
 	public Class<? extends FtpCmd> getCommand() {
@@ -36,6 +67,13 @@ public class CmdMap {
 
 	public void setCommand(Class<? extends FtpCmd> cmdClass) {
 		this.cmdClass = cmdClass;
+		try {
+			constructor = cmdClass.getConstructor(SessionThread.class,
+					String.class);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException(cmdClass
+					+ " has no (SessionThread, String) constructor");
+		}
 	}
 
 	public String getName() {
@@ -45,4 +83,8 @@ public class CmdMap {
 	public void setName(String name) {
 		this.name = name;
 	}
+
+	public boolean isAllowedBeforeLogin() {
+		return allowedBeforeLogin;
+	}
 }
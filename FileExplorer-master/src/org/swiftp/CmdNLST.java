@@ -32,7 +32,7 @@ import android.util.Log;
 
 public class CmdNLST extends CmdAbstractListing implements Runnable {
 	// The approximate number of milliseconds in 6 months
-	public final static long MS_IN_SIX_MONTHS = 6 * 30 * 24 * 60 * 60 * 1000; 
+	public final static long MS_IN_SIX_MONTHS = LsFormatter.MS_IN_SIX_MONTHS;
 	private String input;
 	
 	
@@ -70,22 +70,7 @@ public class CmdNLST extends CmdAbstractListing implements Runnable {
 					break mainblock;
 				}				
 			}
-			String listing;
-			if(fileToList.isDirectory()) {
-				StringBuilder response = new StringBuilder();
-				errString = listDirectory(response, fileToList);
-				if(errString != null) {
-					break mainblock;
-				}
-				listing = response.toString();
-			} else {
-				listing = makeLsString(fileToList);
-				if(listing == null) {
-					errString = "450 Couldn't list that file\r\n";
-					break mainblock;
-				}
-			}
-			errString = sendListing(listing);
+			errString = sendListing(fileToList);
 			if(errString != null) {
 				break mainblock;
 			}
@@ -119,7 +104,9 @@ public class CmdNLST extends CmdAbstractListing implements Runnable {
 			staticLog.l(Log.INFO, "Filename omitted due to disallowed character");
 			return null;
 		} else {
-			staticLog.l(Log.DEBUG, "Filename: " + lastNamePart );
+			if(staticLog.isLoggable(Log.DEBUG)) {
+				staticLog.l(Log.DEBUG, "Filename: " + lastNamePart );
+			}
 			return lastNamePart + "\r\n";
 		}
 	}
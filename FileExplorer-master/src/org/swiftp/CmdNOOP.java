@@ -27,6 +27,11 @@ public class CmdNOOP extends FtpCmd implements Runnable {
 		super(sessionThread, CmdNOOP.class.toString());
 	}
 	
+	public boolean allowedDuringTransfer() {
+		// Clients send NOOP as a keepalive during long transfers
+		return true;
+	}
+	
 	public void run() {
 		sessionThread.writeString("200 NOOP ok\r\n");
 		//myLog.l(Log.INFO, "Executing NOOP, done");
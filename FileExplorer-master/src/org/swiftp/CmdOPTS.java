@@ -32,6 +32,7 @@ public class CmdOPTS extends FtpCmd implements Runnable {
 	public void run() {
 		String param = getParameter(input);
 		String errString = null;
+		String okString = "200 OPTS accepted\r\n";
 		
 		mainBlock: {
 			if(param == null) {
@@ -40,14 +41,30 @@ public class CmdOPTS extends FtpCmd implements Runnable {
 				break mainBlock;
 			}
 			String[] splits = param.split(" ");
-			if(splits.length != 2) {
+			if(splits[0].equalsIgnoreCase("HASH")) {
+				// With no algorithm, this just asks which one is selected
+				if(splits.length > 1) {
+					String algorithm = ChecksumCache.findAlgorithm(splits[1]);
+					if(algorithm == null) {
+						errString = "501 Unsupported hash algorithm\r\n";
+						break mainBlock;
+					}
+					sessionThread.setHashAlgorithm(algorithm);
+				}
+				okString = "200 " + sessionThread.getHashAlgorithm() + "\r\n";
+				break mainBlock;
+			}
+			if(splits.length < 2) {
 				errString = "550 Malformed OPTS command\r\n";
 				myLog.w("Couldn't parse OPTS command");
 				break mainBlock;
 			}
 			String optName = splits[0].toUpperCase();
 			String optVal = splits[1].toUpperCase();
-			if(optName.equals("UTF8")) {
+			if(optName.equals("MODE")) {
+				errString = setModeOptions(splits);
+				break mainBlock;
+			} else if(optName.equals("UTF8")) {
 				// OK, whatever. Don't really know what to do here. We
 				// always operate in UTF8 mode.
 				if(optVal.equals("ON")) {
@@ -67,9 +84,36 @@ public class CmdOPTS extends FtpCmd implements Runnable {
 			sessionThread.writeString(errString);
 			myLog.i("Template log message");
 		} else {
-			sessionThread.writeString("200 OPTS accepted\r\n");
+			sessionThread.writeString(okString);
 			myLog.d("Handled OPTS ok");
 		}
 	}
+	
+	/**
+	 * Handles OPTS MODE Z [LEVEL n], which sets the deflate level used by
+	 * later MODE Z transfers. Returns an error string, or null on success.
+	 */
+	private String setModeOptions(String[] splits) {
+		if(!splits[1].equalsIgnoreCase("Z")) {
+			return "501 Only MODE Z has options\r\n";
+		}
+		int level = sessionThread.getCompressionLevel();
+		for(int i = 2; i < splits.length; i += 2) {
+			if(!splits[i].equalsIgnoreCase("LEVEL") || i + 1 >= splits.length) {
+				return "501 Unrecognized MODE Z option\r\n";
+			}
+			try {
+				level = Integer.parseInt(splits[i + 1]);
+			} catch (NumberFormatException e) {
+				level = -1;
+			}
+			if(level < 0 || level > 9) {
+				return "501 MODE Z LEVEL must be 0 to 9\r\n";
+			}
+		}
+		myLog.d("Using MODE Z level " + level);
+		sessionThread.setCompressionLevel(level);
+		return null;
+	}
 
 }
@@ -47,7 +47,9 @@ public class CmdPASV extends FtpCmd implements Runnable {
 			sessionThread.writeString(cantOpen);
 			return;
 		}
-		myLog.d("PASV sending IP: " + addr.getHostAddress());
+		if(myLog.isLoggable(Log.DEBUG)) {
+			myLog.d("PASV sending IP: " + addr.getHostAddress());
+		}
 		if(port < 1) {
 			myLog.l(Log.ERROR, "PASV port number invalid");
 			sessionThread.writeString(cantOpen);
@@ -66,6 +68,8 @@ public class CmdPASV extends FtpCmd implements Runnable {
 		response.append(").\r\n");
 		String responseString = response.toString();
 		sessionThread.writeString(responseString);
-		myLog.l(Log.DEBUG, "PASV completed, sent: " + responseString);
+		if(myLog.isLoggable(Log.DEBUG)) {
+			myLog.l(Log.DEBUG, "PASV completed, sent: " + responseString);
+		}
 	}
 }
@@ -0,0 +1,59 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import android.util.Log;
+
+/**
+ * RANG sets the inclusive byte range used by the next HASH. "RANG 1 0"
+ * clears it again.
+ */
+public class CmdRANG extends FtpCmd implements Runnable {
+	protected String input;
+	
+	public CmdRANG(SessionThread sessionThread, String input) {
+		super(sessionThread, CmdRANG.class.toString());
+		this.input = input;
+	}
+	
+	public void run() {
+		myLog.l(Log.DEBUG, "RANG executing");
+		String[] splits = getParameter(input).split(" ");
+		long start = -1, end = -1;
+		if(splits.length == 2) {
+			try {
+				start = Long.parseLong(splits[0]);
+				end = Long.parseLong(splits[1]);
+			} catch (NumberFormatException e) {
+				start = -1;
+			}
+		}
+		if(start == 1 && end == 0) {
+			sessionThread.setHashRange(0, -1);
+			sessionThread.writeString("350 Restarting at 0. Ending byte at EOF\r\n");
+		} else if(start < 0 || end < start) {
+			sessionThread.writeString("501 RANG requires a start and end byte\r\n");
+		} else {
+			sessionThread.setHashRange(start, end + 1);
+			sessionThread.writeString("350 Restarting at " + start 
+					+ ". Ending byte at " + end + "\r\n");
+		}
+	}
+}
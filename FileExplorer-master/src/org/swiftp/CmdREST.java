@@ -0,0 +1,58 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import android.util.Log;
+
+/**
+ * REST sets the byte offset at which the next RETR or STOR starts, so a
+ * client can resume an interrupted transfer. Only STREAM mode restart
+ * markers (plain byte counts) are supported.
+ */
+public class CmdREST extends FtpCmd implements Runnable {
+	protected String input;
+	
+	public CmdREST(SessionThread sessionThread, String input) {
+		super(sessionThread, CmdREST.class.toString());
+		this.input = input;
+	}
+	
+	public void run() {
+		String param = getParameter(input);
+		long offset;
+		try {
+			offset = Long.parseLong(param);
+		} catch (NumberFormatException e) {
+			offset = -1;
+		}
+		if(offset < 0) {
+			myLog.l(Log.INFO, "Bad REST offset: " + param);
+			sessionThread.writeString("501 REST requires a non-negative byte offset\r\n");
+			return;
+		}
+		sessionThread.setRestartOffset(offset);
+		sessionThread.writeString("350 Restarting at " + offset + 
+				". Send STORE or RETRIEVE\r\n");
+		if(myLog.isLoggable(Log.DEBUG)) {
+			myLog.l(Log.DEBUG, "REST offset set to " + offset);
+		}
+	}
+
+}
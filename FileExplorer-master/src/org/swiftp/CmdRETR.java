@@ -19,10 +19,14 @@ along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
 
 package org.swiftp;
 
+import net.micode.fileexplorer.MediaFile;
+import net.micode.fileexplorer.MediaFile.MediaFileType;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 
 import android.util.Log;
 
@@ -35,11 +39,19 @@ public class CmdRETR extends FtpCmd implements Runnable {
 		this.input = input;
 	}
 	
+	public boolean usesDataSocket() {
+		return true;
+	}
+	
 	public void run() {
 		myLog.l(Log.DEBUG, "RETR executing");
 		String param = getParameter(input);
 		File fileToRetr;
 		String errString = null;
+		FileInputStream in = null;
+		long startBytes = 0, startTime = 0;
+		long offset = sessionThread.getRestartOffset();
+		sessionThread.setRestartOffset(0);
 		
 		mainblock: {
 			fileToRetr = inputPathToChrootedFile(sessionThread.getWorkingDir(), param);
@@ -59,73 +71,75 @@ public class CmdRETR extends FtpCmd implements Runnable {
 				myLog.l(Log.INFO, "Failed RETR permission (canRead() is false)");
 				errString = "550 No read permissions\r\n";
 				break mainblock;
+			} else if(offset > fileToRetr.length()) {
+				myLog.l(Log.INFO, "RETR restart offset past end of file");
+				errString = "554 Restart offset is past the end of the file\r\n";
+				break mainblock;
 			} /*else if(!sessionThread.isBinaryMode()) {
 				myLog.l(Log.INFO, "Failed RETR in text mode");
 				errString = "550 Text mode RETR not supported\r\n";
 				break mainblock;
 			}*/
 			try {
-				FileInputStream in = new FileInputStream(fileToRetr);
-				byte[] buffer = new byte[Defaults.getDataChunkSize()];
+				in = new FileInputStream(fileToRetr);
+				if(offset > 0) {
+					if(myLog.isLoggable(Log.DEBUG)) {
+						myLog.l(Log.DEBUG, "RETR restarting at " + offset);
+					}
+					in.getChannel().position(offset);
+				}
 				int bytesRead;
-				if(sessionThread.startUsingDataSocket()) {
+				if(sessionThread.startUsingDataSocket(
+						!isCompressedMedia(fileToRetr))) {
 					myLog.l(Log.DEBUG, "RETR opened data socket");
+				} else if(sessionThread.isTransferAborted()) {
+					errString = "426 Transfer aborted\r\n";
+					break mainblock;
 				} else {
 					errString = "425 Error opening socket\r\n";
 					myLog.l(Log.INFO, "Error in initDataSocket()");
 					break mainblock;
 				}
 				sessionThread.writeString("150 Sending file\r\n");
-				if(sessionThread.isBinaryMode()) {
+				startBytes = sessionThread.getBytesSent();
+				startTime = System.nanoTime();
+				int readAhead = Defaults.getRetrReadAheadBuffers();
+				if(readAhead > 0 && fileToRetr.length() - offset 
+						> Defaults.getDataChunkSize()) 
+				{
+					// Worth it only when the file spans several chunks
+					myLog.l(Log.DEBUG, "Transferring with read-ahead");
+					errString = sendReadAhead(in, readAhead);
+					if(errString != null) {
+						break mainblock;
+					}
+				} else if(sessionThread.isBinaryMode()) {
 					myLog.l(Log.DEBUG, "Transferring in binary mode");
-					while((bytesRead = in.read(buffer)) != -1) {
-						//myLog.l(Log.DEBUG,
-						//		String.format("CmdRETR sending %d bytes", bytesRead));
-						if(sessionThread
-						   .sendViaDataSocket(buffer, bytesRead) == false) 
-						{
-							errString = "426 Data socket error\r\n";
-							myLog.l(Log.INFO, "Data socket error");
-							break mainblock;
-						}
+					// Let the kernel move the bytes from the file to the
+					// socket without copying them through our heap
+					FileChannel fileChannel = in.getChannel();
+					if(!sessionThread.sendFileViaDataSocket(fileChannel, offset,
+							fileChannel.size() - offset))
+					{
+						errString = "426 Data socket error\r\n";
+						myLog.l(Log.INFO, "Data socket error");
+						break mainblock;
 					}
 				} else { // We're in ASCII mode
 					myLog.l(Log.DEBUG, "Transferring in ASCII mode");
-					// We have to convert all solitary \n to \r\n
-					boolean lastBufEndedWithCR = false;
+					// Convert each chunk in one pass, adding \r before any
+					// solitary \n, and send it with a single write
+					byte[] buffer = new byte[Defaults.getDataChunkSize()];
+					byte[] encoded = new byte[AsciiCodec.maxEncodedLength(
+							buffer.length)];
+					AsciiCodec codec = new AsciiCodec();
 					while((bytesRead = in.read(buffer)) != -1) {
-						int startPos = 0, endPos = 0;
-						byte[] crnBuf = {'\r','\n'};
-						for(endPos = 0; endPos<bytesRead; endPos++) {
-							if(buffer[endPos] == '\n') {
-								// Send bytes up to but not including the newline
-								sessionThread.sendViaDataSocket(buffer, 
-										startPos, endPos-startPos);
-								if(endPos == 0) {
-									// handle special case where newline occurs at
-									// the beginning of a buffer
-									if(!lastBufEndedWithCR) {
-										// Send an \r only if the the previous
-										// buffer didn't end with an \r
-										sessionThread.sendViaDataSocket(crnBuf, 1);
-									}
-								} else if(buffer[endPos-1] != '\r') {
-									// The file did not have \r before \n, add it
-									sessionThread.sendViaDataSocket(crnBuf, 1);
-								} else {
-									// The file did have \r before \n, don't change
-								}
-								startPos = endPos;
-							}
-						}
-						// Now endPos has finished traversing the array, send remaining
-						// data as-is
-						sessionThread.sendViaDataSocket(buffer, startPos, 
-								endPos-startPos);
-						if(buffer[bytesRead-1] == '\r') {
-							lastBufEndedWithCR = true;
-						} else {
-							lastBufEndedWithCR = false;
+						int encodedLen = codec.encode(buffer, 0, bytesRead, 
+								encoded);
+						if(!sessionThread.sendViaDataSocket(encoded, encodedLen)) {
+							errString = "426 Data socket error\r\n";
+							myLog.l(Log.INFO, "Data socket error");
+							break mainblock;
 						}
 					}
 				}
@@ -137,12 +151,78 @@ public class CmdRETR extends FtpCmd implements Runnable {
 				break mainblock;
 			}
 		}
+		if(in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {}
+		}
 		sessionThread.closeDataSocket();
 		if(errString != null) {
 			sessionThread.writeString(errString);
 		} else {
+			Metrics.recordRetr(sessionThread.getBytesSent() - startBytes,
+					System.nanoTime() - startTime);
 			sessionThread.writeString("226 Transmission finished\r\n");
 		}
 		myLog.l(Log.DEBUG, "RETR done");
 	}
+	
+	/**
+	 * Sends the rest of the file while a ReadAheadReader reads ahead of us,
+	 * translating newlines in ASCII mode. This gives up zero-copy sends in
+	 * binary mode, in exchange for reading and sending at the same time.
+	 * 
+	 * @return The error reply, or null if the file was sent
+	 */
+	private String sendReadAhead(FileInputStream in, int buffers) {
+		int chunkSize = Defaults.getDataChunkSize();
+		AsciiCodec codec = null;
+		byte[] encoded = null;
+		if(!sessionThread.isBinaryMode()) {
+			codec = new AsciiCodec();
+			encoded = new byte[AsciiCodec.maxEncodedLength(chunkSize)];
+		}
+		ReadAheadReader reader = new ReadAheadReader(in, buffers, chunkSize);
+		reader.start();
+		try {
+			ReadAheadReader.Chunk chunk;
+			while((chunk = reader.next()) != null) {
+				boolean sent;
+				if(codec != null) {
+					int encodedLen = codec.encode(chunk.data, 0, chunk.length, 
+							encoded);
+					reader.recycle(chunk);
+					sent = sessionThread.sendViaDataSocket(encoded, encodedLen);
+				} else {
+					sent = sessionThread.sendViaDataSocket(chunk.data, 
+							chunk.length);
+					reader.recycle(chunk);
+				}
+				if(!sent) {
+					myLog.l(Log.INFO, "Data socket error");
+					return "426 Data socket error\r\n";
+				}
+			}
+		} catch (IOException e) {
+			myLog.l(Log.INFO, "Error reading file for RETR: " + e);
+			return "451 Error reading file\r\n";
+		} finally {
+			reader.close();
+		}
+		return null;
+	}
+	
+	/**
+	 * Whether a file is audio, video or an image, whose formats are already
+	 * compressed, so that MODE Z can't make them any smaller.
+	 */
+	static boolean isCompressedMedia(File file) {
+		MediaFileType type = MediaFile.getFileType(file.getName());
+		if(type == null) {
+			return false;
+		}
+		return MediaFile.isAudioFileType(type.fileType)
+				|| MediaFile.isVideoFileType(type.fileType)
+				|| MediaFile.isImageFileType(type.fileType);
+	}
 }
@@ -55,7 +55,12 @@ public class CmdRMD extends FtpCmd implements Runnable {
 				errString = "550 Won't RMD the root directory\r\n";
 				break mainblock;
 			}
-			if(!recursiveDelete(toRemove)) {
+			boolean deleted = recursiveDelete(toRemove);
+			// Even a failed delete may have removed some of the tree
+			ListingCache.getInstance().invalidateTree(toRemove);
+			ListingCache.getInstance().invalidateParent(toRemove);
+			ChecksumCache.getInstance().invalidate(toRemove);
+			if(!deleted) {
 				errString = "550 Deletion error, possibly incomplete\r\n";
 				break mainblock;
 			}
@@ -85,10 +90,14 @@ public class CmdRMD extends FtpCmd implements Runnable {
 			for(File entry : toDelete.listFiles()) {
 				success &= recursiveDelete(entry);
 			}
-			myLog.l(Log.DEBUG, "Recursively deleted: " + toDelete);
+			if(myLog.isLoggable(Log.DEBUG)) {
+				myLog.l(Log.DEBUG, "Recursively deleted: " + toDelete);
+			}
 			return success && toDelete.delete();
 		} else {
-			myLog.l(Log.DEBUG, "RMD deleting file: " + toDelete);
+			if(myLog.isLoggable(Log.DEBUG)) {
+				myLog.l(Log.DEBUG, "RMD deleting file: " + toDelete);
+			}
 			return toDelete.delete();
 		} 
 	}
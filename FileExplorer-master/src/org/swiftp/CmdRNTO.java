@@ -53,6 +53,12 @@ public class CmdRNTO extends FtpCmd implements Runnable {
 				errString = "550 Error during rename operation\r\n";
 				break mainblock;
 			}
+			ChecksumCache.getInstance().invalidate(fromFile);
+			ChecksumCache.getInstance().invalidate(toFile);
+			ListingCache.getInstance().invalidateParent(fromFile);
+			ListingCache.getInstance().invalidateParent(toFile);
+			// If a directory moved, listings under its old name are gone
+			ListingCache.getInstance().invalidateTree(fromFile);
 		}
 		if(errString != null) {
 			sessionThread.writeString(errString);
@@ -0,0 +1,52 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import android.util.Log;
+
+/**
+ * SITE commands are server-specific extensions. The only one we offer is
+ * SITE METRICS, which returns the same report as Metrics.getReport().
+ */
+public class CmdSITE extends FtpCmd implements Runnable {
+	protected String input;
+	
+	public CmdSITE(SessionThread sessionThread, String input) {
+		super(sessionThread, CmdSITE.class.toString());
+		this.input = input;
+	}
+	
+	public void run() {
+		myLog.l(Log.DEBUG, "SITE executing");
+		String param = getParameter(input);
+		if(param.equalsIgnoreCase("METRICS")) {
+			StringBuilder response = new StringBuilder();
+			response.append("211-Server metrics\r\n");
+			for(String line : Metrics.getReport()) {
+				response.append(' ').append(line).append("\r\n");
+			}
+			response.append("211 End\r\n");
+			sessionThread.writeString(response.toString());
+		} else {
+			sessionThread.writeString("504 Unsupported SITE command\r\n");
+		}
+		myLog.l(Log.DEBUG, "SITE finished");
+	}
+}
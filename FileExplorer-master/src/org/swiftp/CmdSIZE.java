@@ -31,6 +31,9 @@ public class CmdSIZE extends FtpCmd {
 				errString = "550 SIZE target violates chroot\r\n";
 				break mainblock;
 			}
+			// This is the file RETR would send, even while an upload of it
+			// is unfinished. A client resuming that upload asks for the SIZE
+			// of its part file instead, see UploadJournal.
 			if(!target.exists()) {
 				errString = "550 Cannot get the SIZE of nonexistent object\r\n";
 				try {
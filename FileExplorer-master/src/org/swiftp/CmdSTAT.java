@@ -0,0 +1,74 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import android.util.Log;
+
+public class CmdSTAT extends FtpCmd implements Runnable {
+	protected String input;
+	
+	public CmdSTAT(SessionThread sessionThread, String input) {
+		super(sessionThread, CmdSTAT.class.toString());
+		this.input = input;
+	}
+	
+	public boolean allowedDuringTransfer() {
+		return true;
+	}
+	
+	public void run() {
+		myLog.l(Log.DEBUG, "STAT executing");
+		if(getParameter(input).length() != 0) {
+			// STAT with a pathname is a listing over the control connection,
+			// which we don't offer
+			sessionThread.writeString("504 STAT of a path is not supported\r\n");
+			return;
+		}
+		Account account = sessionThread.getAccount();
+		StringBuilder response = new StringBuilder();
+		response.append("211-FTP server status:\r\n");
+		response.append(" Connected to ")
+				.append(sessionThread.getSocket().getInetAddress().getHostAddress())
+				.append("\r\n");
+		if(sessionThread.isAuthenticated()) {
+			response.append(" Logged in as ").append(account.getUsername())
+					.append("\r\n");
+		} else {
+			response.append(" Not logged in\r\n");
+		}
+		response.append(" TYPE: ")
+				.append(sessionThread.isBinaryMode() ? "BINARY" : "ASCII")
+				.append("\r\n");
+		response.append(" Session data bytes in ")
+				.append(sessionThread.getBytesReceived())
+				.append(", out ").append(sessionThread.getBytesSent())
+				.append("\r\n");
+		String transferStatus = sessionThread.getTransferStatus();
+		if(transferStatus != null) {
+			response.append(" ").append(transferStatus).append("\r\n");
+		}
+		response.append(" Server sessions active ")
+				.append(Metrics.getActiveSessions())
+				.append(", see SITE METRICS for more\r\n");
+		response.append("211 End of status\r\n");
+		sessionThread.writeString(response.toString());
+		myLog.l(Log.DEBUG, "STAT finished");
+	}
+}
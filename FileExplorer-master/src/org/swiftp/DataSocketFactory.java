@@ -44,6 +44,28 @@ abstract public class DataSocketFactory {
 	 */
 	abstract public InetAddress getPasvIp();
 	
+	/**
+	 * Called from another thread when the client aborts a transfer. If
+	 * onTransfer() is waiting for the data connection, it should give up
+	 * and return null.
+	 */
+	abstract public void abortTransfer();
+	
+	/**
+	 * Called when the session is created, with the address its control
+	 * connection comes from. Subclasses that accept data connections can
+	 * use it to turn away connections from anyone else.
+	 */
+	public void setClientAddress(InetAddress clientAddress) {
+	}
+	
+	/**
+	 * Called once when the session closes, so that anything held for a
+	 * transfer that never happened can be given back.
+	 */
+	public void onSessionClosed() {
+	}
+	
 	/**
 	 * We sometimes want to track the total number of bytes that go over the 
 	 * command and data sockets. The SessionThread can call this function to
@@ -0,0 +1,258 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Writes an upload to its file behind the thread that receives it, so that
+ * a write that stalls, for example while the flash controller collects 
+ * garbage, doesn't stop us reading from the data socket. The receiver fills
+ * buffers from a ring of Defaults.getStorWriteBehindBuffers() and queues 
+ * them, and a writer thread drains the queue. When every buffer is waiting
+ * to be written, getBuffer() blocks, so the receiver stops reading and TCP
+ * flow control slows the client down. Memory per upload stays bounded.
+ * 
+ * A write error is kept and thrown from the receiver's next call, so the
+ * upload fails with its usual 451. After an error the writer keeps taking
+ * buffers without writing them, so the receiver never blocks forever.
+ * 
+ * With zero buffers there is no writer thread and write() writes at once,
+ * which is how uploads worked before.
+ * 
+ * Usage: repeatedly getBuffer(), fill and flip it, and write() it. Then call
+ * finish() when the upload is complete, or abort() if it failed. Either one
+ * returns only when nothing more will be written to the channel.
+ */
+public class DedicatedWriter {
+	private static final MyLog myLog = new MyLog(DedicatedWriter.class.getName());
+	
+	// Writer threads are shared by all sessions, and idle ones exit after a
+	// minute. LoadGenerator lets them go sooner between runs.
+	static final ThreadPoolExecutor writers = new ThreadPoolExecutor(0,
+			Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "STOR write-behind");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	
+	// Queued after the last buffer
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+	
+	private final FileChannel channel;
+	private final boolean behind;
+	private final BlockingQueue<ByteBuffer> empty;
+	// One more slot than there are buffers, for END
+	private final BlockingQueue<ByteBuffer> full;
+	private final CountDownLatch done = new CountDownLatch(1);
+	private final int syncInterval = Defaults.getStorSyncInterval();
+	private long bytesSinceSync = 0;
+	private volatile IOException writeError = null;
+	private volatile boolean aborted = false;
+	private boolean started = false;
+	private boolean stopped = false;
+	// The receiver waiting for an empty buffer means storage is behind, the
+	// writer waiting for a full one means the network is
+	private long storageWaitNanos = 0;
+	private volatile long networkWaitNanos = 0;
+	
+	public DedicatedWriter(FileChannel channel, int buffers, int bufferSize) {
+		this.channel = channel;
+		behind = buffers > 0;
+		buffers = Math.max(buffers, 1);
+		empty = new ArrayBlockingQueue<ByteBuffer>(buffers);
+		full = new ArrayBlockingQueue<ByteBuffer>(buffers + 1);
+		for(int i = 0; i < buffers; i++) {
+			empty.add(ByteBuffer.allocate(bufferSize));
+		}
+	}
+	
+	/**
+	 * Starts the writer thread, if there is to be one.
+	 */
+	public void start() {
+		if(behind && !started) {
+			started = true;
+			writers.execute(new Runnable() {
+				public void run() {
+					writeLoop();
+				}
+			});
+		}
+	}
+	
+	private void writeLoop() {
+		try {
+			while(true) {
+				long waitStart = System.nanoTime();
+				ByteBuffer buffer = full.take();
+				networkWaitNanos += System.nanoTime() - waitStart;
+				if(buffer == END) {
+					break;
+				}
+				if(!aborted && writeError == null) {
+					try {
+						writeOut(buffer);
+					} catch (IOException e) {
+						myLog.l(Log.INFO, "Write-behind failed: " + e);
+						writeError = e;
+					}
+				}
+				buffer.clear();
+				empty.add(buffer);
+			}
+		} catch (InterruptedException e) {
+			// Nothing should interrupt us, but stop() must still return
+		} finally {
+			done.countDown();
+		}
+	}
+	
+	private void writeOut(ByteBuffer buffer) throws IOException {
+		int length = buffer.remaining();
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		// We only force data to the storage device when configured to
+		bytesSinceSync += length;
+		if(syncInterval > 0 && bytesSinceSync >= syncInterval) {
+			channel.force(false);
+			bytesSinceSync = 0;
+		}
+	}
+	
+	/**
+	 * Returns an empty buffer, waiting until the writer has finished with
+	 * one if they are all in use.
+	 * 
+	 * @throws IOException if an earlier write failed
+	 */
+	public ByteBuffer getBuffer() throws IOException {
+		checkError();
+		long waitStart = System.nanoTime();
+		ByteBuffer buffer;
+		try {
+			buffer = empty.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for a write buffer");
+		}
+		storageWaitNanos += System.nanoTime() - waitStart;
+		checkError();
+		buffer.clear();
+		return buffer;
+	}
+	
+	/**
+	 * Queues a flipped buffer from getBuffer() to be written, or writes it
+	 * at once when there is no writer thread.
+	 * 
+	 * @throws IOException if this or an earlier write failed
+	 */
+	public void write(ByteBuffer buffer) throws IOException {
+		if(!behind) {
+			try {
+				writeOut(buffer);
+			} finally {
+				buffer.clear();
+				empty.add(buffer);
+			}
+			return;
+		}
+		checkError();
+		full.add(buffer);
+	}
+	
+	/**
+	 * Waits for every queued buffer to be written, and for the data to reach
+	 * the storage device if syncing is configured.
+	 * 
+	 * @throws IOException if any write failed
+	 */
+	public void finish() throws IOException {
+		stop();
+		checkError();
+		if(syncInterval > 0) {
+			channel.force(false);
+		}
+		if(behind) {
+			Metrics.recordWriteBehindWaits(storageWaitNanos, networkWaitNanos);
+			if(myLog.isLoggable(Log.DEBUG)) {
+				myLog.d("STOR write-behind waited " + storageWaitNanos / 1000000 
+						+ " ms for storage and " + networkWaitNanos / 1000000 
+						+ " ms for the network");
+			}
+		}
+	}
+	
+	/**
+	 * Throws away anything not yet written and waits for a write in
+	 * progress to end. The channel is not interrupted, so it stays open.
+	 */
+	public void abort() {
+		aborted = true;
+		stop();
+	}
+	
+	private void stop() {
+		if(stopped) {
+			return;
+		}
+		stopped = true;
+		if(!started) {
+			return;
+		}
+		full.add(END);
+		// A write can't take forever, so keep waiting even if interrupted
+		boolean interrupted = false;
+		while(true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void checkError() throws IOException {
+		IOException e = writeError;
+		if(e != null) {
+			throw e;
+		}
+	}
+}
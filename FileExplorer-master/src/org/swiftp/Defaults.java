@@ -25,17 +25,68 @@ import android.util.Log;
 public class Defaults {
 	protected static int inputBufferSize = 256;
 	protected static int dataChunkSize = 65536;  // do file I/O in 64k chunks 
+	// Largest single FileChannel.transferTo call when sending files
+	protected static int zeroCopyChunkSize = 524288;
+	// When nonzero, uploads are forced to the storage device every this many
+	// bytes and again when the transfer completes. Zero leaves it to the
+	// kernel, which is much faster for many small files.
+	protected static int storSyncInterval = 0;
+	// Upper bounds for data transfer rates in bytes per second, zero for no
+	// limit. The global one is shared by all sessions, the session one
+	// applies to each session on its own. See BandwidthLimiter.
+	protected static volatile long maxBandwidth = 0;
+	protected static volatile long sessionBandwidth = 0;
+	// Most control sessions open at once, and from any one client address,
+	// zero for no limit. See SessionManager.
+	protected static volatile int maxSessions = 32;
+	protected static volatile int maxSessionsPerAddress = 8;
+	// Sessions that send no command for this long are closed, unless a
+	// transfer is running. Zero disables the timeout.
+	protected static volatile long idleTimeoutMs = 300000;
+	// Ports PASV listeners may use, both zero for any free port, how many
+	// idle listeners are kept for reuse, and how long a PASV waits for the
+	// client to connect. See PasvPortPool.
+	protected static volatile int pasvPortMin = 0;
+	protected static volatile int pasvPortMax = 0;
+	protected static volatile int pasvPoolSize = 16;
+	protected static volatile long pasvAcceptTimeoutMs = 30000;
+	// When nonzero, RETR reads files this many chunks ahead of the data
+	// connection on another thread. See ReadAheadReader.
+	protected static volatile int retrReadAheadBuffers = 0;
+	// Chunks of an upload that may wait to be written while we keep
+	// receiving, zero to write each one before reading the next. See
+	// DedicatedWriter.
+	protected static volatile int storWriteBehindBuffers = 4;
+	// How long a failed upload's part file is kept for a REST and STOR to
+	// continue it. See UploadJournal.
+	protected static long partialUploadTtlMs = 86400000;
+	// An upload is recorded in the UploadJournal once this much of it has
+	// arrived, so that it can be continued after a crash
+	protected static long partialUploadJournalBytes = 1048576;
+	// Memory for cached directory listings, and how long one may be reused
+	// before the entries are read again. See ListingCache.
+	protected static int listingCacheBytes = 1048576;
+	protected static long listingCacheTtlMs = 30000;
+	// Read size used when hashing files for HASH and XCRC
+	protected static int hashBufferSize = 262144;
+	// Deflate level for MODE Z data connections until OPTS MODE Z changes it
+	protected static int modeZLevel = 6;
 	protected static int sessionMonitorScrollBack = 10;
 	protected static int serverLogScrollBack = 10;
 	protected static int uiLogLevel = Defaults.release ? Log.INFO : Log.DEBUG;
 	protected static int consoleLogLevel = Defaults.release ? Log.INFO : Log.DEBUG;
+	// Log messages waiting for the LogDrainer thread; more are dropped
+	public static final int logRingSize = 1024;
 	protected static String settingsName = "SwiFTP";
 	//protected static String username = "user";
 	//protected static String password = "";
 	public static int portNumber = 2121; 
+	// Serve all control connections from one selector thread (NioListener)
+	// instead of spawning a SessionThread per client. Data transfers still
+	// run on the transfer pool that SessionThread uses.
+	public static boolean nioSessions = false;
 //	protected static int ipRetrievalAttempts = 5;
 	public static final int tcpConnectionBacklog = 5;
-	public static final String chrootDir =  net.micode.fileexplorer.Util.getSdDirectory();
 	public static final boolean acceptWifi = true;
 	public static final boolean acceptNet = false; // don't incur bandwidth charges
 	public static final boolean stayAwake = false;
@@ -50,14 +101,6 @@ public class Defaults {
 	// This is a flag that should be true for public builds and false for dev builds
 	public static final boolean release = true;
 	
-	// Try to fix the transfer stall bug, reopen the destination file periodically
-	//public static final boolean do_reopen_hack = false;
-	//public static final int bytes_between_reopen = 4000000;
-	
-	// Try to fix the transfer stall bug, flush the file periodically
-	//public static final boolean do_flush_hack = false;
-	//public static final int bytes_between_flush = 500000;
-	
 	public static final boolean do_mediascanner_notify = true;
 	
 	
@@ -77,6 +120,118 @@ public class Defaults {
 		Defaults.portNumber = portNumber;
 	}
 
+	public static boolean isNioSessions() {
+		return nioSessions;
+	}
+
+	public static void setNioSessions(boolean nioSessions) {
+		Defaults.nioSessions = nioSessions;
+	}
+
+	public static long getMaxBandwidth() {
+		return maxBandwidth;
+	}
+
+	public static void setMaxBandwidth(long maxBandwidth) {
+		Defaults.maxBandwidth = maxBandwidth;
+	}
+
+	public static long getSessionBandwidth() {
+		return sessionBandwidth;
+	}
+
+	public static void setSessionBandwidth(long sessionBandwidth) {
+		Defaults.sessionBandwidth = sessionBandwidth;
+	}
+
+	public static int getMaxSessions() {
+		return maxSessions;
+	}
+
+	public static void setMaxSessions(int maxSessions) {
+		Defaults.maxSessions = maxSessions;
+	}
+
+	public static int getMaxSessionsPerAddress() {
+		return maxSessionsPerAddress;
+	}
+
+	public static void setMaxSessionsPerAddress(int maxSessionsPerAddress) {
+		Defaults.maxSessionsPerAddress = maxSessionsPerAddress;
+	}
+
+	public static long getIdleTimeoutMs() {
+		return idleTimeoutMs;
+	}
+
+	public static void setIdleTimeoutMs(long idleTimeoutMs) {
+		Defaults.idleTimeoutMs = idleTimeoutMs;
+	}
+
+	public static int getPasvPortMin() {
+		return pasvPortMin;
+	}
+
+	public static void setPasvPortMin(int pasvPortMin) {
+		Defaults.pasvPortMin = pasvPortMin;
+	}
+
+	public static int getPasvPortMax() {
+		return pasvPortMax;
+	}
+
+	public static void setPasvPortMax(int pasvPortMax) {
+		Defaults.pasvPortMax = pasvPortMax;
+	}
+
+	public static int getPasvPoolSize() {
+		return pasvPoolSize;
+	}
+
+	public static void setPasvPoolSize(int pasvPoolSize) {
+		Defaults.pasvPoolSize = pasvPoolSize;
+	}
+
+	public static long getPasvAcceptTimeoutMs() {
+		return pasvAcceptTimeoutMs;
+	}
+
+	public static void setPasvAcceptTimeoutMs(long pasvAcceptTimeoutMs) {
+		Defaults.pasvAcceptTimeoutMs = pasvAcceptTimeoutMs;
+	}
+
+	public static int getRetrReadAheadBuffers() {
+		return retrReadAheadBuffers;
+	}
+
+	public static void setRetrReadAheadBuffers(int retrReadAheadBuffers) {
+		Defaults.retrReadAheadBuffers = retrReadAheadBuffers;
+	}
+
+	public static int getStorWriteBehindBuffers() {
+		return storWriteBehindBuffers;
+	}
+
+	public static void setStorWriteBehindBuffers(int storWriteBehindBuffers) {
+		Defaults.storWriteBehindBuffers = storWriteBehindBuffers;
+	}
+
+	public static long getPartialUploadTtlMs() {
+		return partialUploadTtlMs;
+	}
+
+	public static void setPartialUploadTtlMs(long partialUploadTtlMs) {
+		Defaults.partialUploadTtlMs = partialUploadTtlMs;
+	}
+
+	public static long getPartialUploadJournalBytes() {
+		return partialUploadJournalBytes;
+	}
+
+	public static void setPartialUploadJournalBytes(long partialUploadJournalBytes) {
+		Defaults.partialUploadJournalBytes = partialUploadJournalBytes;
+	}
+
 	public static String getSettingsName() {
 		return settingsName;
 	}
@@ -123,6 +278,54 @@ public class Defaults {
 		Defaults.dataChunkSize = dataChunkSize;
 	}
 
+	public static int getListingCacheBytes() {
+		return listingCacheBytes;
+	}
+
+	public static void setListingCacheBytes(int listingCacheBytes) {
+		Defaults.listingCacheBytes = listingCacheBytes;
+	}
+
+	public static long getListingCacheTtlMs() {
+		return listingCacheTtlMs;
+	}
+
+	public static void setListingCacheTtlMs(long listingCacheTtlMs) {
+		Defaults.listingCacheTtlMs = listingCacheTtlMs;
+	}
+
+	public static int getHashBufferSize() {
+		return hashBufferSize;
+	}
+
+	public static void setHashBufferSize(int hashBufferSize) {
+		Defaults.hashBufferSize = hashBufferSize;
+	}
+
+	public static int getModeZLevel() {
+		return modeZLevel;
+	}
+
+	public static void setModeZLevel(int modeZLevel) {
+		Defaults.modeZLevel = modeZLevel;
+	}
+
+	public static int getZeroCopyChunkSize() {
+		return zeroCopyChunkSize;
+	}
+
+	public static void setZeroCopyChunkSize(int zeroCopyChunkSize) {
+		Defaults.zeroCopyChunkSize = zeroCopyChunkSize;
+	}
+
+	public static int getStorSyncInterval() {
+		return storSyncInterval;
+	}
+
+	public static void setStorSyncInterval(int storSyncInterval) {
+		Defaults.storSyncInterval = storSyncInterval;
+	}
+
 	public static int getSessionMonitorScrollBack() {
 		return sessionMonitorScrollBack;
 	}
@@ -0,0 +1,97 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Reserves disk space for a file before it is written, for ALLO. On Android
+ * 5.0 and later this is posix_fallocate() through android.system.Os, which
+ * allocates the blocks without writing them on ext4 and f2fs. Bionic's
+ * posix_fallocate() doesn't fall back to writing zeros where the filesystem
+ * can't do that, such as the vfat of many SD cards, and we don't either: it
+ * would stall the upload for as long as writing the file itself. Where
+ * space can't be reserved, and on older platforms and plain JVMs, which have
+ * no way to ask for it, ALLO is only advisory and the upload goes ahead 
+ * without a reservation.
+ */
+public class FileSpace {
+	// From <errno.h>
+	private static final int ENOSPC = 28;
+	
+	private static Method osFallocate = null;
+	private static MyLog staticLog = new MyLog(FileSpace.class.getName());
+	
+	static {
+		try {
+			Class<?> os = Class.forName("android.system.Os");
+			osFallocate = os.getMethod("posix_fallocate", FileDescriptor.class,
+					long.class, long.class);
+		} catch (Exception e) {
+			// Not available on this platform
+			osFallocate = null;
+		}
+	}
+	
+	/**
+	 * Whether this platform may be able to reserve space at all
+	 */
+	public static boolean isSupported() {
+		return osFallocate != null;
+	}
+	
+	/**
+	 * Reserves length bytes of fd from offset on, extending the file if that
+	 * goes past its end. Returns false if the space couldn't be reserved 
+	 * because the platform or filesystem can't do it.
+	 * @throws IOException if there isn't enough space
+	 */
+	public static boolean reserve(FileDescriptor fd, long offset, long length)
+	throws IOException 
+	{
+		if(osFallocate == null) {
+			return false;
+		}
+		try {
+			osFallocate.invoke(null, fd, offset, length);
+			return true;
+		} catch (InvocationTargetException e) {
+			// An android.system.ErrnoException
+			Throwable cause = e.getCause();
+			int errno = -1;
+			try {
+				errno = cause.getClass().getField("errno").getInt(cause);
+			} catch (Exception fieldException) {
+			}
+			if(errno == ENOSPC) {
+				throw new IOException("No space for " + length + " bytes");
+			}
+			staticLog.i("Can't reserve space here: " + cause);
+			return false;
+		} catch (Exception e) {
+			staticLog.i("Os.posix_fallocate unusable: " + e);
+			osFallocate = null;
+			return false;
+		}
+	}
+}
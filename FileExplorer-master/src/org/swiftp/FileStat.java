@@ -0,0 +1,112 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * The attributes of one file, collected with as few system calls as the
+ * platform allows. On Android 5.0 and later this is a single stat() through
+ * android.system.Os. Older platforms fall back to the java.io.File
+ * accessors, which stat the file once per attribute.
+ */
+public class FileStat {
+	// File type bits from <sys/stat.h>
+	public static final int S_IFMT = 0170000;
+	public static final int S_IFDIR = 0040000;
+	public static final int S_IFREG = 0100000;
+	public static final int S_IWUSR = 0000200;
+	public static final int S_IWGRP = 0000020;
+	public static final int S_IWOTH = 0000002;
+	
+	public boolean exists;
+	public boolean isDirectory;
+	public boolean isFile;
+	public long size;
+	public long lastModified; // milliseconds since the epoch
+	public boolean writable;
+	
+	private static Method osStat = null;
+	private static Field stMode, stSize, stMtime;
+	private static MyLog staticLog = new MyLog(FileStat.class.getName());
+	
+	static {
+		try {
+			Class<?> os = Class.forName("android.system.Os");
+			Class<?> structStat = Class.forName("android.system.StructStat");
+			stMode = structStat.getField("st_mode");
+			stSize = structStat.getField("st_size");
+			stMtime = structStat.getField("st_mtime");
+			osStat = os.getMethod("stat", String.class);
+		} catch (Exception e) {
+			// Not available on this platform, use the java.io.File fallback
+			osStat = null;
+		}
+	}
+	
+	/**
+	 * Fills in this object with the attributes of file.
+	 * @return this, for chaining
+	 */
+	public FileStat stat(File file) {
+		if(osStat != null) {
+			try {
+				Object st = osStat.invoke(null, file.getPath());
+				int mode = stMode.getInt(st);
+				exists = true;
+				isDirectory = (mode & S_IFMT) == S_IFDIR;
+				isFile = (mode & S_IFMT) == S_IFREG;
+				size = stSize.getLong(st);
+				lastModified = stMtime.getLong(st) * 1000;
+				writable = (mode & (S_IWUSR | S_IWGRP | S_IWOTH)) != 0;
+				return this;
+			} catch (java.lang.reflect.InvocationTargetException e) {
+				// stat() failed, normally because the file doesn't exist
+				clear();
+				return this;
+			} catch (Exception e) {
+				staticLog.i("Os.stat unusable, falling back: " + e);
+				osStat = null;
+			}
+		}
+		isDirectory = file.isDirectory();
+		isFile = !isDirectory && file.isFile();
+		exists = isDirectory || isFile || file.exists();
+		if(exists) {
+			size = file.length();
+			lastModified = file.lastModified();
+			writable = file.canWrite();
+		} else {
+			clear();
+		}
+		return this;
+	}
+	
+	private void clear() {
+		exists = false;
+		isDirectory = false;
+		isFile = false;
+		size = 0;
+		lastModified = 0;
+		writable = false;
+	}
+}
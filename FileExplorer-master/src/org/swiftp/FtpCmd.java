@@ -21,7 +21,6 @@ package org.swiftp;
 
 
 import java.io.File;
-import java.lang.reflect.Constructor;
 
 import android.util.Log;
 
@@ -29,67 +28,114 @@ public abstract class FtpCmd implements Runnable {
 	protected SessionThread sessionThread;
 	protected MyLog myLog;
 	protected static MyLog staticLog = new MyLog(FtpCmd.class.toString());
+	// The table entry this command was created from, if any
+	CmdMap cmdMap;
 	
-	private static FtpCmd getCmd(String cmd, SessionThread sessionThread, String input) {
-		if ("SYST".equals(cmd))
-			return new CmdSYST(sessionThread, input);
-		if ("USER".equals(cmd))
-			return new CmdUSER(sessionThread, input);
-		if ("PASS".equals(cmd))
-			return new CmdPASS(sessionThread, input);
-		if ("TYPE".equals(cmd))
-			return new CmdTYPE(sessionThread, input);
-		if ("CWD".equals(cmd))
-			return new CmdCWD(sessionThread, input);
-		if ("PWD".equals(cmd))
-			return new CmdPWD(sessionThread, input);
-		if ("LIST".equals(cmd))
-			return new CmdLIST(sessionThread, input);
-		if ("PASV".equals(cmd))
-			return new CmdPASV(sessionThread, input);
-		if ("RETR".equals(cmd))
-			return new CmdRETR(sessionThread, input);
-		if ("NLST".equals(cmd))
-			return new CmdNLST(sessionThread, input);
-		if ("NOOP".equals(cmd))
-			return new CmdNOOP(sessionThread, input);
-		if ("STOR".equals(cmd))
-			return new CmdSTOR(sessionThread, input);
-		if ("DELE".equals(cmd))
-			return new CmdDELE(sessionThread, input);
-		if ("RNFR".equals(cmd))
-			return new CmdRNFR(sessionThread, input);
-		if ("RNTO".equals(cmd))
-			return new CmdRNTO(sessionThread, input);
-		if ("RMD".equals(cmd))
-			return new CmdRMD(sessionThread, input);
-		if ("MKD".equals(cmd))
-			return new CmdMKD(sessionThread, input);
-		if ("OPTS".equals(cmd))
-			return new CmdOPTS(sessionThread, input);
-		if ("PORT".equals(cmd))
-			return new CmdPORT(sessionThread, input);
-		if ("QUIT".equals(cmd))
-			return new CmdQUIT(sessionThread, input);
-		if ("FEAT".equals(cmd))
-			return new CmdFEAT(sessionThread, input);
-		if ("SIZE".equals(cmd))
-			return new CmdSIZE(sessionThread, input);
-		if ("CDUP".equals(cmd))
-			return new CmdCDUP(sessionThread, input);
-		if ("APPE".equals(cmd))
-			return new CmdAPPE(sessionThread, input);
-		if ("XCUP".equals(cmd))
-			return new CmdCDUP(sessionThread, input); // synonym
-		if ("XPWD".equals(cmd))
-			return new CmdPWD(sessionThread, input);  // synonym
-		if ("XMKD".equals(cmd))
-			return new CmdMKD(sessionThread, input);  // synonym
-		if ("XRMD".equals(cmd))
-			return new CmdRMD(sessionThread, input);   // synonym
-		return null;
+	protected static CmdMap[] cmdClasses = {
+			new CmdMap("SYST", CmdSYST.class),
+			new CmdMap("USER", CmdUSER.class, true),
+			new CmdMap("PASS", CmdPASS.class, true),
+			new CmdMap("TYPE", CmdTYPE.class),
+			new CmdMap("CWD", CmdCWD.class),
+			new CmdMap("PWD", CmdPWD.class),
+			new CmdMap("LIST", CmdLIST.class),
+			new CmdMap("PASV", CmdPASV.class),
+			new CmdMap("RETR", CmdRETR.class),
+			new CmdMap("NLST", CmdNLST.class),
+			new CmdMap("NOOP", CmdNOOP.class),
+			new CmdMap("STOR", CmdSTOR.class),
+			new CmdMap("DELE", CmdDELE.class),
+			new CmdMap("RNFR", CmdRNFR.class),
+			new CmdMap("RNTO", CmdRNTO.class),
+			new CmdMap("RMD", CmdRMD.class),
+			new CmdMap("MKD", CmdMKD.class),
+			new CmdMap("OPTS", CmdOPTS.class),
+			new CmdMap("PORT", CmdPORT.class),
+			new CmdMap("QUIT", CmdQUIT.class, true),
+			new CmdMap("FEAT", CmdFEAT.class),
+			new CmdMap("SIZE", CmdSIZE.class),
+			new CmdMap("CDUP", CmdCDUP.class),
+			new CmdMap("APPE", CmdAPPE.class),
+			new CmdMap("XCUP", CmdCDUP.class), // synonym
+			new CmdMap("XPWD", CmdPWD.class),  // synonym
+			new CmdMap("XMKD", CmdMKD.class),  // synonym
+			new CmdMap("XRMD", CmdRMD.class),  // synonym
+			new CmdMap("REST", CmdREST.class),
+			new CmdMap("ALLO", CmdALLO.class),
+			new CmdMap("MLSD", CmdMLSD.class),
+			new CmdMap("MLST", CmdMLST.class),
+			new CmdMap("STAT", CmdSTAT.class),
+			new CmdMap("SITE", CmdSITE.class),
+			new CmdMap("MODE", CmdMODE.class),
+			new CmdMap("HASH", CmdHASH.class),
+			new CmdMap("RANG", CmdRANG.class),
+			new CmdMap("XCRC", CmdXCRC.class),
+			new CmdMap("XMD5", CmdXMD5.class),
+			new CmdMap("XSHA1", CmdXSHA1.class),
+			new CmdMap("XSHA256", CmdXSHA256.class),
+			new CmdMap("XSHA512", CmdXSHA512.class),
+			new CmdMap("ABOR", CmdABOR.class)
 	};
 	
+	// Open-addressed hash table over cmdClasses, keyed by the packed verb.
+	// It is kept at most a quarter full, so lookups almost never probe.
+	private static final int VERB_TABLE_BITS = 8;
+	private static final CmdMap[] verbTable = new CmdMap[1 << VERB_TABLE_BITS];
+	
+	static {
+		for(CmdMap cmdMap : cmdClasses) {
+			String name = cmdMap.getName();
+			cmdMap.packedName = packVerb(name, 0, name.length());
+			int slot = verbSlot(cmdMap.packedName);
+			while(verbTable[slot] != null) {
+				slot = (slot + 1) & (verbTable.length - 1);
+			}
+			verbTable[slot] = cmdMap;
+		}
+	}
+	
+	/**
+	 * Packs a verb of up to eight ASCII letters and digits, case-insensitively,
+	 * into a long. Returns 0 if the verb is empty, too long, or has any other
+	 * characters, so that it can't match any command.
+	 */
+	static long packVerb(String input, int start, int end) {
+		int len = end - start;
+		if(len < 1 || len > 8) {
+			return 0;
+		}
+		long packed = 0;
+		for(int i = start; i < end; i++) {
+			int c = input.charAt(i);
+			if(c >= 'a' && c <= 'z') {
+				c -= 'a' - 'A';
+			} else if((c < 'A' || c > 'Z') && (c < '0' || c > '9')) {
+				return 0;
+			}
+			packed = (packed << 8) | c;
+		}
+		return packed;
+	}
+	
+	private static int verbSlot(long packed) {
+		return (int)((packed * 0x9E3779B97F4A7C15L) >>> (64 - VERB_TABLE_BITS));
+	}
+	
+	static CmdMap findCmd(long packed) {
+		if(packed == 0) {
+			return null;
+		}
+		int slot = verbSlot(packed);
+		CmdMap cmdMap;
+		while((cmdMap = verbTable[slot]) != null) {
+			if(cmdMap.packedName == packed) {
+				return cmdMap;
+			}
+			slot = (slot + 1) & (verbTable.length - 1);
+		}
+		return null;
+	}
+	
 	public FtpCmd(SessionThread sessionThread, String logName) {
 		this.sessionThread = sessionThread;
 		myLog = new MyLog(logName);
@@ -97,49 +143,91 @@ public abstract class FtpCmd implements Runnable {
 	
 	abstract public void run();
 	
+	/**
+	 * Runs the command and records how long it took against its verb.
+	 */
+	void runMeasured() {
+		long start = System.nanoTime();
+		try {
+			run();
+		} finally {
+			if(cmdMap != null) {
+				cmdMap.latency.record((System.nanoTime() - start) / 1000);
+			}
+		}
+	}
+	
+	/**
+	 * Commands that open the data socket may block for a long time. Session
+	 * implementations that multiplex many clients on one thread use this to
+	 * decide which commands must be run on a transfer thread.
+	 */
+	public boolean usesDataSocket() {
+		return false;
+	}
+	
+	/**
+	 * Whether a session should run this command even while a transfer is
+	 * in progress, rather than after it finishes.
+	 */
+	public boolean allowedDuringTransfer() {
+		return false;
+	}
+	
 	protected static void dispatchCommand(SessionThread session, 
 	                                      String inputString) {
-		String[] strings = inputString.split(" ");
 		String unrecognizedCmdMsg = "502 Command not recognized\r\n";
-		if(strings == null) {
-			// There was some egregious sort of parsing error
-			String errString = "502 Command parse error\r\n";
-			staticLog.l(Log.INFO, errString);
-			session.writeString(errString);
-			return;
+		session.markActive();
+		// Clients put a Telnet interrupt sequence (IAC IP IAC DM) in front of
+		// ABOR, which reaches us as control or non-ASCII characters
+		int verbStart = 0;
+		while(verbStart < inputString.length() 
+				&& (inputString.charAt(verbStart) < 0x20 
+						|| inputString.charAt(verbStart) > 0x7e)) {
+			verbStart++;
 		}
-		if(strings.length < 1) {
-			staticLog.l(Log.INFO, "No strings parsed");
-			session.writeString(unrecognizedCmdMsg);
-			return;
+		if(verbStart > 0) {
+			inputString = inputString.substring(verbStart);
+		}
+		// The verb is everything before the first space, less any trailing
+		// whitespace. We find it without splitting or copying the line.
+		int verbEnd = inputString.indexOf(' ');
+		if(verbEnd == -1) {
+			verbEnd = inputString.length();
 		}
-		String verb = strings[0];
-		if(verb.length() < 1) {
+		while(verbEnd > 0 && isWhitespace(inputString.charAt(verbEnd - 1))) {
+			verbEnd--;
+		}
+		if(verbEnd < 1) {
 			staticLog.l(Log.INFO, "Invalid command verb");
 			session.writeString(unrecognizedCmdMsg);
 			return;
 		}
 
-		verb = verb.trim();
-		verb = verb.toUpperCase();
-		FtpCmd cmdInstance = getCmd(verb, session, inputString);
-
-		if(cmdInstance == null) {
+		CmdMap cmdMap = findCmd(packVerb(inputString, 0, verbEnd));
+		if(cmdMap == null) {
 			// If we couldn't find a matching command,
-			staticLog.l(Log.DEBUG, "Ignoring unrecognized FTP verb: " + verb);
+			if(staticLog.isLoggable(Log.DEBUG)) {
+				staticLog.l(Log.DEBUG, "Ignoring unrecognized FTP verb: " + 
+						inputString.substring(0, verbEnd));
+			}
 			session.writeString(unrecognizedCmdMsg);
 			return;
-		} else if(session.isAuthenticated() 
-				|| cmdInstance.getClass().equals(CmdUSER.class)
-				|| cmdInstance.getClass().equals(CmdPASS.class)
-				|| cmdInstance.getClass().equals(CmdUSER.class))
-		{
+		} else if(session.isAuthenticated() || cmdMap.isAllowedBeforeLogin()) {
 			// Unauthenticated users can run only USER, PASS and QUIT 
-			cmdInstance.run();
+			session.runCommand(cmdMap.newInstance(session, inputString));
 		} else {
 			session.writeString("530 Login first with USER and PASS\r\n");
 		}
 	}
+	
+	/**
+	 * The characters matched by the regex class \s
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B'
+				|| c == '\f' || c == '\r';
+	}
 		
 	/**
 	 * An FTP parameter is that part of the input string that occurs
@@ -157,13 +245,15 @@ public abstract class FtpCmd implements Runnable {
 		if(firstSpacePosition == -1) {
 			return "";
 		}
-		String retString = input.substring(firstSpacePosition+1);
-		
 		// Remove trailing whitespace
 		// todo: trailing whitespace may be significant, just remove \r\n
-		retString = retString.replaceAll("\\s+$", "");
+		int end = input.length();
+		while(end > firstSpacePosition+1 && isWhitespace(input.charAt(end - 1))) {
+			end--;
+		}
+		String retString = input.substring(firstSpacePosition+1, end);
 		
-		if(!silent) {
+		if(!silent && staticLog.isLoggable(Log.DEBUG)) {
 			staticLog.l(Log.DEBUG, "Parsed argument: " + retString);
 		}
 		return retString; 
@@ -25,8 +25,10 @@ import android.content.Context;
 
 public class Globals {
     private static Context context;
-    private static String lastError;
-    private static File chrootDir = new File(Defaults.chrootDir);
+    private static volatile String lastError;
+    // Set when the server is configured, else the platform's default
+    private static File chrootDir = null;
+    private static volatile Platform platform = null;
     private static ProxyConnector proxyConnector = null;
     private static String username = null;
 
@@ -44,6 +46,9 @@ public class Globals {
     }
 
     public static File getChrootDir() {
+        if(chrootDir == null) {
+            chrootDir = getPlatform().getDefaultChrootDir();
+        }
         return chrootDir;
     }
 
@@ -71,6 +76,23 @@ public class Globals {
         }
     }
 
+    /**
+     * The system the server runs on. The app installs an AndroidPlatform
+     * and HeadlessServer a JvmPlatform, before anything else uses the
+     * engine.
+     */
+    public static Platform getPlatform() {
+        Platform p = platform;
+        if(p == null) {
+            throw new IllegalStateException("No Platform has been set");
+        }
+        return p;
+    }
+
+    public static void setPlatform(Platform platform) {
+        Globals.platform = platform;
+    }
+
     public static String getUsername() {
         return username;
     }
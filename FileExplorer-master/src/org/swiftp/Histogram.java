@@ -0,0 +1,95 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values in power-of-two buckets. The
+ * values are counted exactly, but percentiles are only known to within a
+ * factor of two, which is plenty for latencies and transfer rates.
+ */
+public class Histogram {
+	// Bucket i holds values v with 2^(i-1) <= v < 2^i, bucket 0 holds 0
+	private final AtomicLongArray buckets = new AtomicLongArray(64);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	
+	public void record(long value) {
+		if(value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long oldMax;
+		while(value > (oldMax = max.get())) {
+			if(max.compareAndSet(oldMax, value)) {
+				break;
+			}
+		}
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+	
+	public long getSum() {
+		return sum.get();
+	}
+	
+	public long getMax() {
+		return max.get();
+	}
+	
+	public long getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : sum.get() / n;
+	}
+	
+	/**
+	 * Returns an upper bound for the given percentile (0 to 100) of the
+	 * recorded values.
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.get();
+		if(n == 0) {
+			return 0;
+		}
+		long rank = (long)Math.ceil(n * percentile / 100.0);
+		long seen = 0;
+		for(int i = 0; i < 64; i++) {
+			seen += buckets.get(i);
+			if(seen >= rank) {
+				long upper = i == 0 ? 0 : (i == 63 ? Long.MAX_VALUE : (1L << i) - 1);
+				return Math.min(upper, max.get());
+			}
+		}
+		return max.get();
+	}
+	
+	public String toString() {
+		return "count=" + getCount() + " mean=" + getMean()
+				+ " p50<=" + getPercentile(50) + " p99<=" + getPercentile(99)
+				+ " max=" + getMax();
+	}
+}
@@ -0,0 +1,178 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the encoded bytes of recent directory listings, so that clients
+ * that list the same directories over and over don't make us read and stat
+ * every entry each time.
+ * 
+ * A listing is keyed by the canonical path of the directory, the kind of
+ * listing and the session encoding. It is only used while the directory has
+ * the mtime it had when the listing was made, and for at most
+ * Defaults.listingCacheTtlMs, since changes to the entries themselves (a file
+ * growing, say) don't touch the directory's mtime. Our own commands that
+ * change a directory invalidate it explicitly. The total size of the cached
+ * listings is capped, evicting the least recently used first.
+ */
+public class ListingCache {
+	private static final ListingCache instance = new ListingCache();
+	
+	private static class Entry {
+		final long dirModified;
+		final long created;
+		final byte[] payload;
+		
+		Entry(long dirModified, long created, byte[] payload) {
+			this.dirModified = dirModified;
+			this.created = created;
+			this.payload = payload;
+		}
+	}
+	
+	// Least recently used first
+	private final LinkedHashMap<String, Entry> entries = 
+		new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long totalBytes = 0;
+	
+	public static ListingCache getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * The largest listing worth caching. Bigger ones would push out too many
+	 * others, so they are just streamed.
+	 */
+	public static int getMaxEntryBytes() {
+		return Defaults.getListingCacheBytes() / 4;
+	}
+	
+	/**
+	 * Builds the cache key for a listing, or returns null if the directory
+	 * can't be canonicalized.
+	 */
+	public static String makeKey(File dir, String kind, String encoding) {
+		try {
+			return dir.getCanonicalPath() + '\0' + kind + '\0' + encoding;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Returns the cached listing for key if it is still valid, or null.
+	 * Counts the hit or miss in Metrics.
+	 */
+	public synchronized byte[] get(String key, long dirModified) {
+		Entry entry = entries.get(key);
+		if(entry != null) {
+			long age = System.currentTimeMillis() - entry.created;
+			if(entry.dirModified == dirModified && age >= 0 
+					&& age < Defaults.getListingCacheTtlMs()) {
+				Metrics.countListingCache(true);
+				return entry.payload;
+			}
+			remove(key);
+		}
+		Metrics.countListingCache(false);
+		return null;
+	}
+	
+	public synchronized void put(String key, long dirModified, byte[] payload) {
+		if(payload.length > getMaxEntryBytes()) {
+			return;
+		}
+		remove(key);
+		entries.put(key, new Entry(dirModified, System.currentTimeMillis(),
+				payload));
+		totalBytes += payload.length;
+		Iterator<Entry> eldest = entries.values().iterator();
+		while(totalBytes > Defaults.getListingCacheBytes() && eldest.hasNext()) {
+			totalBytes -= eldest.next().payload.length;
+			eldest.remove();
+		}
+	}
+	
+	/**
+	 * Forgets the listings of one directory. Called by commands that add,
+	 * remove or rename entries in it.
+	 */
+	public void invalidate(File dir) {
+		invalidate(dir, false);
+	}
+	
+	/**
+	 * Forgets the listings of a directory and of every directory below it,
+	 * for when a whole tree is renamed or removed.
+	 */
+	public void invalidateTree(File dir) {
+		invalidate(dir, true);
+	}
+	
+	/**
+	 * Forgets the listings of the directory a file is in
+	 */
+	public void invalidateParent(File file) {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if(parent != null) {
+			invalidate(parent, false);
+		}
+	}
+	
+	private synchronized void invalidate(File dir, boolean tree) {
+		if(entries.isEmpty()) {
+			return;
+		}
+		String path;
+		try {
+			path = dir.getCanonicalPath();
+		} catch (IOException e) {
+			// We can't tell which entries it could match, so drop them all
+			entries.clear();
+			totalBytes = 0;
+			return;
+		}
+		String dirPrefix = path + '\0';
+		String treePrefix = path + '/';
+		Iterator<Map.Entry<String, Entry>> it = 
+			entries.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<String, Entry> entry = it.next();
+			String key = entry.getKey();
+			if(key.startsWith(dirPrefix) || (tree && key.startsWith(treePrefix))) {
+				totalBytes -= entry.getValue().payload.length;
+				it.remove();
+			}
+		}
+	}
+	
+	private void remove(String key) {
+		Entry old = entries.remove(key);
+		if(old != null) {
+			totalBytes -= old.payload.length;
+		}
+	}
+}
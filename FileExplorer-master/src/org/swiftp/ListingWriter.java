@@ -0,0 +1,166 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Collects the lines of a directory listing in one reusable byte buffer and
+ * sends them over the session's data socket whenever the buffer fills up.
+ * Memory use stays the same no matter how many entries are listed, and the
+ * client starts receiving entries as soon as the first batch is full.
+ * 
+ * Once a send fails, all further writes are ignored and hasFailed() returns
+ * true, so callers can stop producing entries.
+ */
+public class ListingWriter {
+	public static final int BATCH_SIZE = 16384;
+	
+	protected SessionThread sessionThread;
+	protected ByteBuffer batch = ByteBuffer.allocate(BATCH_SIZE);
+	protected CharsetEncoder encoder;
+	private boolean failed = false;
+	// System.nanoTime() when the first batch was sent, or 0
+	private long firstSendTime = 0;
+	// A copy of everything sent, kept for the ListingCache until it grows
+	// past captureLimit
+	private ByteArrayOutputStream capture = null;
+	private int captureLimit = 0;
+	
+	public ListingWriter(SessionThread sessionThread) {
+		this.sessionThread = sessionThread;
+		encoder = Charset.forName(sessionThread.getEncoding()).newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+	
+	/**
+	 * Encodes a line (which should include its "\r\n") into the batch.
+	 */
+	public void write(CharSequence line) {
+		if(failed) {
+			return;
+		}
+		CharBuffer chars = CharBuffer.wrap(line);
+		encoder.reset();
+		while(true) {
+			CoderResult result = encoder.encode(chars, batch, true);
+			if(result.isOverflow()) {
+				if(!flush()) {
+					return;
+				}
+				continue;
+			}
+			if(result.isError()) {
+				try {
+					result.throwException();
+				} catch (CharacterCodingException e) {
+					// Can't happen, errors are replaced above
+				}
+			}
+			break;
+		}
+		while(encoder.flush(batch).isOverflow()) {
+			if(!flush()) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Appends raw bytes to the batch.
+	 */
+	public void write(byte[] bytes, int start, int len) {
+		while(len > 0 && !failed) {
+			if(!batch.hasRemaining() && !flush()) {
+				return;
+			}
+			int n = Math.min(len, batch.remaining());
+			batch.put(bytes, start, n);
+			start += n;
+			len -= n;
+		}
+	}
+	
+	/**
+	 * Sends whatever is in the batch and empties it.
+	 * @return false if the data socket send failed
+	 */
+	public boolean flush() {
+		if(failed) {
+			return false;
+		}
+		if(batch.position() > 0) {
+			if(capture != null) {
+				if(capture.size() + batch.position() > captureLimit) {
+					capture = null; // too big to be worth caching
+				} else {
+					capture.write(batch.array(), 0, batch.position());
+				}
+			}
+			if(!sessionThread.sendViaDataSocket(batch.array(), 0,
+					batch.position(), false)) {
+				failed = true;
+				return false;
+			}
+			if(firstSendTime == 0) {
+				firstSendTime = System.nanoTime();
+			}
+			batch.clear();
+		}
+		return true;
+	}
+	
+	public boolean hasFailed() {
+		return failed;
+	}
+	
+	/**
+	 * Starts keeping a copy of the listing as it is sent, to be returned by
+	 * getCaptured(), as long as it stays within limit bytes.
+	 */
+	public void startCapture(int limit) {
+		capture = new ByteArrayOutputStream();
+		captureLimit = limit;
+	}
+	
+	/**
+	 * Returns everything sent since startCapture(), or null if capturing
+	 * wasn't started or the listing outgrew the limit. Call after flush().
+	 */
+	public byte[] getCaptured() {
+		return capture == null ? null : capture.toByteArray();
+	}
+	
+	/**
+	 * Returns the System.nanoTime() at which the first batch went out, or 0
+	 * if nothing has been sent yet.
+	 */
+	public long getFirstSendTime() {
+		return firstSendTime;
+	}
+}
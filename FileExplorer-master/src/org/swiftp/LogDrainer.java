@@ -0,0 +1,173 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * Carries log messages from MyLog to the platform's system log and UI
+ * scrollback on a background thread, so that sessions never contend on a
+ * lock or wait on the system log.
+ * 
+ * Producers append to a fixed-size ring without locking: each slot has a
+ * sequence number that says whether it is free for the producer that claimed
+ * that position, or holds a message ready for the drainer. The record objects
+ * in the ring are reused, so logging allocates nothing beyond the message
+ * string. When the ring is full, messages are dropped and counted rather than
+ * blocking the caller.
+ */
+public class LogDrainer extends Thread {
+	private static final LogDrainer instance = new LogDrainer(
+			Defaults.logRingSize);
+	
+	private static class Record {
+		int level;
+		String tag;
+		String message;
+		boolean sysOnly;
+	}
+	
+	private final Record[] records;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	// The next position producers will claim
+	private final AtomicLong tail = new AtomicLong();
+	// The next position to be drained, only touched by the drainer thread
+	private long head = 0;
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean idle = false;
+	
+	private LogDrainer(int capacity) {
+		super("SwiFTP log drainer");
+		int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+		records = new Record[size];
+		sequences = new AtomicLongArray(size);
+		for(int i = 0; i < size; i++) {
+			records[i] = new Record();
+			sequences.set(i, i);
+		}
+		mask = size - 1;
+		setDaemon(true);
+		setPriority(Thread.MIN_PRIORITY);
+		start();
+	}
+	
+	/**
+	 * Queues a message for the drainer. Never blocks; returns false if the
+	 * ring was full and the message was dropped.
+	 */
+	public static boolean enqueue(int level, String tag, String message,
+			boolean sysOnly) {
+		return instance.offer(level, tag, message, sysOnly);
+	}
+	
+	private boolean offer(int level, String tag, String message, 
+			boolean sysOnly) {
+		long pos = tail.get();
+		int slot;
+		while(true) {
+			slot = (int)pos & mask;
+			long diff = sequences.get(slot) - pos;
+			if(diff == 0) {
+				if(tail.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+				pos = tail.get();
+			} else if(diff < 0) {
+				// The drainer hasn't freed this slot yet, the ring is full
+				dropped.incrementAndGet();
+				return false;
+			} else {
+				// Another producer claimed this position first
+				pos = tail.get();
+			}
+		}
+		Record record = records[slot];
+		record.level = level;
+		record.tag = tag;
+		record.message = message;
+		record.sysOnly = sysOnly;
+		// Publishes the record fields to the drainer
+		sequences.lazySet(slot, pos + 1);
+		if(idle) {
+			LockSupport.unpark(this);
+		}
+		return true;
+	}
+	
+	public void run() {
+		while(true) {
+			int slot = (int)head & mask;
+			if(sequences.get(slot) != head + 1) {
+				reportDropped();
+				idle = true;
+				// Recheck after announcing we are idle, so that a producer
+				// that missed the flag can't leave a message stranded
+				if(sequences.get(slot) != head + 1) {
+					LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(250));
+				}
+				idle = false;
+				continue;
+			}
+			Record record = records[slot];
+			int level = record.level;
+			String tag = record.tag;
+			String message = record.message;
+			boolean sysOnly = record.sysOnly;
+			record.tag = null;
+			record.message = null;
+			// Hands the slot back to producers for the next lap of the ring
+			sequences.lazySet(slot, head + mask + 1);
+			head++;
+			write(level, tag, message, sysOnly);
+		}
+	}
+	
+	private void reportDropped() {
+		long count = dropped.getAndSet(0);
+		if(count > 0) {
+			write(Log.WARN, "LogDrainer", count + " log messages dropped", 
+					false);
+		}
+	}
+	
+	private static void write(int level, String tag, String message, 
+			boolean sysOnly) {
+		try {
+			message = message.trim();
+			Platform platform = Globals.getPlatform();
+			if(level >= Defaults.getConsoleLogLevel()) {
+				platform.log(level, tag, message);
+			}
+			if(!sysOnly) { // some messages only go to the system log
+				if(level >= Defaults.getUiLogLevel()) {
+					platform.showLog(level, message);
+				}
+			}
+		} catch (RuntimeException e) {
+			// Never let one bad message stop the drainer
+		}
+	}
+}
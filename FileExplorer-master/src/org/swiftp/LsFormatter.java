@@ -0,0 +1,214 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Calendar;
+
+/**
+ * Formats the lines of a LIST reply in /bin/ls style, straight into a
+ * reusable byte array. The size field is written digit by digit, month
+ * names are precomputed, and the 14-byte timestamp field is cached per
+ * distinct minute, so formatting an entry normally allocates nothing.
+ * 
+ * See Daniel Bernstein's explanation of /bin/ls format at:
+ * http://cr.yp.to/ftp/list/binls.html
+ * 
+ * A formatter is not thread safe; each listing should use its own.
+ */
+public class LsFormatter {
+	// The approximate number of milliseconds in 6 months
+	public final static long MS_IN_SIX_MONTHS = 6L * 30 * 24 * 60 * 60 * 1000;
+	public final static int SIZE_WIDTH = 13;
+	public final static int DATE_WIDTH = 14; // " MMM dd HH:mm " or " MMM dd  yyyy "
+	private final static int DATE_CACHE_SLOTS = 256; // must be a power of 2
+	
+	private final static byte[] DIR_PREFIX = bytes("drwxr-xr-x 1 owner group");
+	// todo: think about special files, symlinks, devices
+	private final static byte[] FILE_PREFIX = bytes("-rw-r--r-- 1 owner group");
+	private final static byte[][] MONTHS = {
+		bytes("Jan"), bytes("Feb"), bytes("Mar"), bytes("Apr"),
+		bytes("May"), bytes("Jun"), bytes("Jul"), bytes("Aug"),
+		bytes("Sep"), bytes("Oct"), bytes("Nov"), bytes("Dec")
+	};
+	
+	private byte[] line = new byte[256];
+	private int len;
+	private long now;
+	private Calendar calendar = Calendar.getInstance();
+	// Direct-mapped cache of formatted date fields. The key is the mtime in
+	// minutes, times two, plus one if the short "HH:mm" form was used.
+	private long[] dateKeys = new long[DATE_CACHE_SLOTS];
+	private byte[][] dateFields = new byte[DATE_CACHE_SLOTS][];
+	private CharsetEncoder encoder;
+	private boolean asciiCompatible;
+	
+	public LsFormatter(String encoding) {
+		Charset charset = Charset.forName(encoding);
+		encoder = charset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		String name = charset.name();
+		asciiCompatible = name.equals("UTF-8") || name.equals("US-ASCII")
+				|| name.equals("ISO-8859-1");
+		now = System.currentTimeMillis();
+		for(int i = 0; i < DATE_CACHE_SLOTS; i++) {
+			dateKeys[i] = -1;
+			dateFields[i] = new byte[DATE_WIDTH];
+		}
+	}
+	
+	/**
+	 * Formats one entry, including the trailing "\r\n". The result is in
+	 * getBytes() up to getLength(), and is overwritten by the next call.
+	 */
+	public void format(boolean isDirectory, long size, long mTime, String name) {
+		len = 0;
+		byte[] prefix = isDirectory ? DIR_PREFIX : FILE_PREFIX;
+		ensure(prefix.length + SIZE_WIDTH + DATE_WIDTH + name.length() + 2);
+		System.arraycopy(prefix, 0, line, 0, prefix.length);
+		len = prefix.length;
+		
+		// The next field is a 13-byte right-justified space-padded file size
+		int end = len + SIZE_WIDTH;
+		int pos = end;
+		do {
+			line[--pos] = (byte)('0' + (size % 10));
+			size /= 10;
+		} while(size > 0 && pos > len);
+		while(pos > len) {
+			line[--pos] = ' ';
+		}
+		len = end;
+		
+		System.arraycopy(dateField(mTime), 0, line, len, DATE_WIDTH);
+		len += DATE_WIDTH;
+		
+		appendName(name);
+		line[len++] = '\r';
+		line[len++] = '\n';
+	}
+	
+	public byte[] getBytes() {
+		return line;
+	}
+	
+	public int getLength() {
+		return len;
+	}
+	
+	/**
+	 * The format of the timestamp varies depending on whether the mtime is
+	 * within the last 6 months.
+	 */
+	private byte[] dateField(long mTime) {
+		boolean recent = mTime <= now && now - mTime < MS_IN_SIX_MONTHS;
+		long key = (mTime / 60000) * 2 + (recent ? 1 : 0);
+		int slot = (int)(key ^ (key >>> 32)) & (DATE_CACHE_SLOTS - 1);
+		byte[] field = dateFields[slot];
+		if(dateKeys[slot] == key) {
+			return field;
+		}
+		calendar.setTimeInMillis(mTime);
+		field[0] = ' ';
+		System.arraycopy(MONTHS[calendar.get(Calendar.MONTH)], 0, field, 1, 3);
+		field[4] = ' ';
+		putTwoDigits(field, 5, calendar.get(Calendar.DAY_OF_MONTH));
+		field[7] = ' ';
+		if(recent) {
+			putTwoDigits(field, 8, calendar.get(Calendar.HOUR_OF_DAY));
+			field[10] = ':';
+			putTwoDigits(field, 11, calendar.get(Calendar.MINUTE));
+		} else {
+			int year = calendar.get(Calendar.YEAR);
+			field[8] = ' ';
+			putTwoDigits(field, 9, year / 100 % 100);
+			putTwoDigits(field, 11, year % 100);
+		}
+		field[13] = ' ';
+		dateKeys[slot] = key;
+		return field;
+	}
+	
+	private static void putTwoDigits(byte[] dest, int pos, int value) {
+		dest[pos] = (byte)('0' + value / 10);
+		dest[pos + 1] = (byte)('0' + value % 10);
+	}
+	
+	private void appendName(String name) {
+		int n = name.length();
+		if(asciiCompatible) {
+			int i = 0;
+			for(; i < n; i++) {
+				char c = name.charAt(i);
+				if(c >= 0x80) {
+					break;
+				}
+				line[len + i] = (byte)c;
+			}
+			if(i == n) {
+				len += n;
+				return;
+			}
+		}
+		// Names with non-ASCII characters go through the encoder. Two bytes
+		// are kept free for the "\r\n".
+		encoder.reset();
+		CharBuffer in = CharBuffer.wrap(name);
+		ByteBuffer out = ByteBuffer.wrap(line, len, line.length - len - 2);
+		while(encoder.encode(in, out, true).isOverflow()) {
+			out = grow(out, in.remaining());
+		}
+		while(encoder.flush(out).isOverflow()) {
+			out = grow(out, 1);
+		}
+		len = out.position();
+	}
+	
+	private ByteBuffer grow(ByteBuffer out, int charsLeft) {
+		len = out.position();
+		ensure((int)(charsLeft * encoder.maxBytesPerChar()) + 8);
+		return ByteBuffer.wrap(line, len, line.length - len - 2);
+	}
+	
+	/**
+	 * Makes sure the line buffer has room for extra more bytes past len.
+	 */
+	private void ensure(int extra) {
+		if(len + extra > line.length) {
+			byte[] bigger = new byte[Math.max(line.length * 2, len + extra)];
+			System.arraycopy(line, 0, bigger, 0, len);
+			line = bigger;
+		}
+	}
+	
+	private static byte[] bytes(String s) {
+		byte[] b = new byte[s.length()];
+		for(int i = 0; i < b.length; i++) {
+			b[i] = (byte)s.charAt(i);
+		}
+		return b;
+	}
+}
@@ -0,0 +1,360 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-wide counters fed by the FTP engine. Everything here is lock-free
+ * so that sessions can update it on every command and transfer. The UI can
+ * poll the getters or getReport(), and clients can see the same report with
+ * SITE METRICS.
+ */
+public class Metrics {
+	private static final AtomicLong bytesIn = new AtomicLong();
+	private static final AtomicLong bytesOut = new AtomicLong();
+	private static final AtomicInteger activeSessions = new AtomicInteger();
+	private static final AtomicLong totalSessions = new AtomicLong();
+	private static final AtomicLong refusedSessions = new AtomicLong();
+	private static final AtomicLong reapedSessions = new AtomicLong();
+	private static final AtomicLong pasvListenersBound = new AtomicLong();
+	private static final AtomicLong pasvListenersReused = new AtomicLong();
+	private static final AtomicLong pasvAcceptTimeouts = new AtomicLong();
+	private static final AtomicLong pasvForeignConnections = new AtomicLong();
+	private static final AtomicLong replies4xx = new AtomicLong();
+	private static final AtomicLong replies5xx = new AtomicLong();
+	private static final AtomicLong listingCacheHits = new AtomicLong();
+	private static final AtomicLong listingCacheMisses = new AtomicLong();
+	// Microseconds from the start of each command to its completion
+	private static final ConcurrentMap<String, Histogram> commandLatency =
+		new ConcurrentHashMap<String, Histogram>();
+	// Microseconds from the start of a LIST, NLST or MLSD to its first
+	// batch of data being sent
+	private static final Histogram listFirstByte = new Histogram();
+	// Microseconds each read-ahead RETR spent waiting for storage, and
+	// waiting for the network
+	private static final Histogram readAheadStorageWait = new Histogram();
+	private static final Histogram readAheadNetworkWait = new Histogram();
+	// Microseconds each write-behind STOR spent with every buffer waiting
+	// for storage, and waiting for the network with nothing to write
+	private static final Histogram writeBehindStorageWait = new Histogram();
+	private static final Histogram writeBehindNetworkWait = new Histogram();
+	private static final TransferStats retrStats = new TransferStats();
+	private static final TransferStats storStats = new TransferStats();
+	private static volatile long startTime = System.currentTimeMillis();
+	
+	/**
+	 * Totals for one direction of file transfer, and a histogram of the
+	 * rate of each transfer in KiB per second.
+	 */
+	public static class TransferStats {
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+		private final AtomicLong nanos = new AtomicLong();
+		private final Histogram rate = new Histogram();
+		
+		void record(long numBytes, long elapsedNanos) {
+			count.incrementAndGet();
+			bytes.addAndGet(numBytes);
+			nanos.addAndGet(elapsedNanos);
+			rate.record(kibPerSecond(numBytes, elapsedNanos));
+		}
+		
+		public long getCount() {
+			return count.get();
+		}
+		
+		public long getBytes() {
+			return bytes.get();
+		}
+		
+		/**
+		 * The average rate over all transfers, in KiB per second
+		 */
+		public long getAverageRate() {
+			return kibPerSecond(bytes.get(), nanos.get());
+		}
+		
+		public Histogram getRateHistogram() {
+			return rate;
+		}
+		
+		public String toString() {
+			return "count=" + getCount() + " bytes=" + getBytes()
+				+ " avg-KiB/s=" + getAverageRate() + " p50-KiB/s<="
+				+ rate.getPercentile(50);
+		}
+	}
+	
+	private static long kibPerSecond(long numBytes, long elapsedNanos) {
+		if(elapsedNanos <= 0) {
+			return 0;
+		}
+		return (long)(numBytes / 1024.0 * 1e9 / elapsedNanos);
+	}
+	
+	public static void addBytesIn(long numBytes) {
+		bytesIn.addAndGet(numBytes);
+	}
+	
+	public static void addBytesOut(long numBytes) {
+		bytesOut.addAndGet(numBytes);
+	}
+	
+	static void sessionOpened() {
+		activeSessions.incrementAndGet();
+		totalSessions.incrementAndGet();
+	}
+	
+	static void sessionClosed() {
+		activeSessions.decrementAndGet();
+	}
+	
+	static void countRefusedSession() {
+		refusedSessions.incrementAndGet();
+	}
+	
+	static void countReapedSession() {
+		reapedSessions.incrementAndGet();
+	}
+	
+	static void countPasvListenerBound() {
+		pasvListenersBound.incrementAndGet();
+	}
+	
+	static void countPasvListenerReused() {
+		pasvListenersReused.incrementAndGet();
+	}
+	
+	static void countPasvAcceptTimeout() {
+		pasvAcceptTimeouts.incrementAndGet();
+	}
+	
+	static void countPasvForeignConnection() {
+		pasvForeignConnections.incrementAndGet();
+	}
+	
+	/**
+	 * Counts a reply by its first digit, the only one we care about
+	 */
+	static void countReply(byte firstDigit) {
+		if(firstDigit == '4') {
+			replies4xx.incrementAndGet();
+		} else if(firstDigit == '5') {
+			replies5xx.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Returns the latency histogram for a verb, creating it if needed. Each
+	 * CmdMap looks up its own once, so dispatch never touches the map.
+	 */
+	static Histogram commandLatency(String verb) {
+		Histogram histogram = commandLatency.get(verb);
+		if(histogram == null) {
+			Histogram newHistogram = new Histogram();
+			histogram = commandLatency.putIfAbsent(verb, newHistogram);
+			if(histogram == null) {
+				histogram = newHistogram;
+			}
+		}
+		return histogram;
+	}
+	
+	static void countListingCache(boolean hit) {
+		if(hit) {
+			listingCacheHits.incrementAndGet();
+		} else {
+			listingCacheMisses.incrementAndGet();
+		}
+	}
+	
+	static void recordListFirstByte(long elapsedNanos) {
+		listFirstByte.record(elapsedNanos / 1000);
+	}
+	
+	static void recordRetr(long numBytes, long elapsedNanos) {
+		retrStats.record(numBytes, elapsedNanos);
+	}
+	
+	static void recordStor(long numBytes, long elapsedNanos) {
+		storStats.record(numBytes, elapsedNanos);
+	}
+	
+	static void recordReadAheadWaits(long storageNanos, long networkNanos) {
+		readAheadStorageWait.record(storageNanos / 1000);
+		readAheadNetworkWait.record(networkNanos / 1000);
+	}
+	
+	static void recordWriteBehindWaits(long storageNanos, long networkNanos) {
+		writeBehindStorageWait.record(storageNanos / 1000);
+		writeBehindNetworkWait.record(networkNanos / 1000);
+	}
+	
+	public static long getBytesIn() {
+		return bytesIn.get();
+	}
+	
+	public static long getBytesOut() {
+		return bytesOut.get();
+	}
+	
+	public static int getActiveSessions() {
+		return activeSessions.get();
+	}
+	
+	public static long getTotalSessions() {
+		return totalSessions.get();
+	}
+	
+	public static long getRefusedSessions() {
+		return refusedSessions.get();
+	}
+	
+	public static long getReapedSessions() {
+		return reapedSessions.get();
+	}
+	
+	public static long getPasvListenersBound() {
+		return pasvListenersBound.get();
+	}
+	
+	public static long getPasvListenersReused() {
+		return pasvListenersReused.get();
+	}
+	
+	public static long getPasvAcceptTimeouts() {
+		return pasvAcceptTimeouts.get();
+	}
+	
+	public static long getPasvForeignConnections() {
+		return pasvForeignConnections.get();
+	}
+	
+	public static long getReplies4xx() {
+		return replies4xx.get();
+	}
+	
+	public static long getReplies5xx() {
+		return replies5xx.get();
+	}
+	
+	public static long getListingCacheHits() {
+		return listingCacheHits.get();
+	}
+	
+	public static long getListingCacheMisses() {
+		return listingCacheMisses.get();
+	}
+	
+	public static Histogram getListFirstByte() {
+		return listFirstByte;
+	}
+	
+	public static Histogram getReadAheadStorageWait() {
+		return readAheadStorageWait;
+	}
+	
+	public static Histogram getReadAheadNetworkWait() {
+		return readAheadNetworkWait;
+	}
+	
+	public static Histogram getWriteBehindStorageWait() {
+		return writeBehindStorageWait;
+	}
+	
+	public static Histogram getWriteBehindNetworkWait() {
+		return writeBehindNetworkWait;
+	}
+	
+	public static TransferStats getRetrStats() {
+		return retrStats;
+	}
+	
+	public static TransferStats getStorStats() {
+		return storStats;
+	}
+	
+	/**
+	 * Returns the per-verb latency histograms, sorted by verb. Verbs that
+	 * were never used are left out.
+	 */
+	public static Map<String, Histogram> getCommandLatency() {
+		Map<String, Histogram> result = new TreeMap<String, Histogram>();
+		for(Map.Entry<String, Histogram> entry : commandLatency.entrySet()) {
+			if(entry.getValue().getCount() > 0) {
+				result.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return result;
+	}
+	
+	public static long getUptimeMillis() {
+		return System.currentTimeMillis() - startTime;
+	}
+	
+	/**
+	 * Restarts the uptime clock. Called when the server starts; the counters
+	 * themselves keep running for the life of the process.
+	 */
+	public static void markStarted() {
+		startTime = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Returns a human-readable summary of all metrics, one item per line.
+	 */
+	public static List<String> getReport() {
+		List<String> lines = new ArrayList<String>();
+		lines.add("uptime-seconds " + getUptimeMillis() / 1000);
+		lines.add("sessions-active " + getActiveSessions());
+		lines.add("sessions-total " + getTotalSessions());
+		lines.add("sessions-refused " + getRefusedSessions());
+		lines.add("sessions-reaped " + getReapedSessions());
+		lines.add("bytes-in " + getBytesIn());
+		lines.add("bytes-out " + getBytesOut());
+		lines.add("pasv-listeners bound=" + getPasvListenersBound()
+				+ " reused=" + getPasvListenersReused()
+				+ " accept-timeouts=" + getPasvAcceptTimeouts()
+				+ " foreign-refused=" + getPasvForeignConnections());
+		lines.add("replies-4xx " + getReplies4xx());
+		lines.add("replies-5xx " + getReplies5xx());
+		lines.add("retr " + retrStats);
+		lines.add("stor " + storStats);
+		lines.add("retr-read-ahead-storage-wait-us " + readAheadStorageWait);
+		lines.add("retr-read-ahead-network-wait-us " + readAheadNetworkWait);
+		lines.add("stor-write-behind-storage-wait-us " + writeBehindStorageWait);
+		lines.add("stor-write-behind-network-wait-us " + writeBehindNetworkWait);
+		lines.add("list-first-byte-us " + listFirstByte);
+		lines.add("listing-cache hits=" + getListingCacheHits() 
+				+ " misses=" + getListingCacheMisses());
+		for(Map.Entry<String, Histogram> entry : getCommandLatency().entrySet()) {
+			lines.add("latency-us " + entry.getKey() + " " + entry.getValue());
+		}
+		return lines;
+	}
+}
@@ -19,8 +19,6 @@ along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
 
 package org.swiftp;
 
-import net.micode.fileexplorer.FTPServerService;
-
 import android.util.Log;
 
 public class MyLog {
@@ -30,22 +28,26 @@ public class MyLog {
 		this.tag = tag;
 	}
 	
+	/**
+	 * Whether a message of this level would go anywhere. Callers that build
+	 * a message on a busy path should check this first.
+	 */
+	public boolean isLoggable(int level) {
+		return level >= Defaults.getConsoleLogLevel() 
+				|| level >= Defaults.getUiLogLevel()
+				|| level == Log.ERROR || level == Log.WARN;
+	}
+	
 	public void l(int level, String str, boolean sysOnly) {
-		synchronized (MyLog.class) {
-			str = str.trim();
-			// Messages of this severity are handled specially
-			if(level == Log.ERROR || level == Log.WARN) {
-				Globals.setLastError(str);
-			}
-			if(level >= Defaults.getConsoleLogLevel()) {
-				Log.println(level,tag, str);
-			}
-			if(!sysOnly) { // some messages only go to the Android log
-				if(level >= Defaults.getUiLogLevel()) {
-					FTPServerService.log(level, str);
-				}
-			}
+		// Messages of this severity are handled specially
+		if(level == Log.ERROR || level == Log.WARN) {
+			Globals.setLastError(str.trim());
+		}
+		if(level < Defaults.getConsoleLogLevel() && 
+				(sysOnly || level < Defaults.getUiLogLevel())) {
+			return;
 		}
+		LogDrainer.enqueue(level, tag, str, sysOnly);
 	}
 	
 	public void l(int level, String str) {
@@ -0,0 +1,132 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import android.util.Log;
+
+/**
+ * A replacement for TcpListener that serves every control connection from
+ * this one thread using a Selector, instead of spawning a SessionThread per
+ * client. Commands that use the data socket run on SessionThread's shared
+ * transfer pool. The listen socket must have been created from a
+ * ServerSocketChannel.
+ */
+public class NioListener extends TcpListener {
+	protected Selector selector;
+	private Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<Runnable>();
+
+	public NioListener(ServerSocket listenSocket) {
+		super(listenSocket);
+	}
+
+	public void quit() {
+		super.quit();
+		Selector s = selector;
+		if(s != null) {
+			s.wakeup();
+		}
+	}
+
+	/**
+	 * Queues a task to be run on the selector thread. Sessions use this to
+	 * change their interest set from a transfer thread.
+	 */
+	void runOnSelector(Runnable task) {
+		selectorTasks.add(task);
+		Selector s = selector;
+		if(s != null) {
+			s.wakeup();
+		}
+	}
+
+	public void run() {
+		ServerSocketChannel serverChannel = listenSocket.getChannel();
+		if(serverChannel == null) {
+			myLog.l(Log.ERROR, "NioListener needs a channel-backed listen socket");
+			return;
+		}
+		try {
+			selector = Selector.open();
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+			while(serverChannel.isOpen()) {
+				selector.select();
+				Runnable task;
+				while((task = selectorTasks.poll()) != null) {
+					task.run();
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if(key.isAcceptable()) {
+							accept(serverChannel);
+							continue;
+						}
+						NioSession session = (NioSession)key.attachment();
+						if(key.isWritable()) {
+							session.onWritable();
+						}
+						if(key.isValid() && key.isReadable()) {
+							session.onReadable();
+						}
+					} catch(CancelledKeyException e) {
+						// The session was closed while its key was selected
+					}
+				}
+			}
+		} catch (Exception e) {
+			myLog.l(Log.DEBUG, "Exception in NioListener");
+		} finally {
+			try {
+				selector.close();
+			} catch (Exception e) {}
+		}
+	}
+
+	private void accept(ServerSocketChannel serverChannel) throws IOException {
+		SocketChannel clientChannel = serverChannel.accept();
+		if(clientChannel == null) {
+			return;
+		}
+		myLog.l(Log.INFO, "New connection");
+		clientChannel.configureBlocking(false);
+		NioSession newSession = new NioSession(clientChannel,
+				new NormalDataSocketFactory(), this);
+		if(!SessionManager.getInstance().register(newSession)) {
+			return;
+		}
+		newSession.setKey(clientChannel.register(selector,
+				SelectionKey.OP_READ, newSession));
+		newSession.greet();
+	}
+}
@@ -0,0 +1,336 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.swiftp;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+import android.util.Log;
+
+/**
+ * A control connection served by a NioListener. The session state and all
+ * of the Cmd* classes are shared with SessionThread, but this object is never
+ * started as a thread. Instead, the listener's selector thread feeds it bytes
+ * as they arrive, and commands that use the data socket are run on the
+ * transfer pool shared with SessionThread. While such a command runs, only commands that are
+ * allowed during a transfer, such as ABOR and STAT, are run. The first other
+ * command is held until the transfer ends, and nothing more is read until
+ * then, so replies are never reordered.
+ * 
+ * Replies are never waited for either. What doesn't fit in the socket send
+ * buffer is queued here and sent when the selector finds the channel 
+ * writable. No commands are read or run until then, so a client that stops
+ * reading its replies only stalls itself.
+ */
+public class NioSession extends SessionThread {
+    public static final int MAX_LINE_LENGTH = 8192;
+    // A client with this much unsent reply data isn't reading, and is
+    // dropped
+    public static final int MAX_PENDING_REPLY_BYTES = 65536;
+
+    protected SocketChannel channel;
+    protected NioListener listener;
+    protected SelectionKey key;
+    protected ByteBuffer lineBuffer = ByteBuffer.allocate(MAX_LINE_LENGTH);
+    // True while a command is running on a transfer thread
+    private boolean busy = false;
+    // A command that arrived during a transfer and must wait for its end
+    private FtpCmd pendingCmd = null;
+    private boolean discardingLine = false;
+    // Whether the selector should watch for input, only touched on the
+    // selector thread
+    private boolean readInterest = true;
+    // Reply bytes the channel hasn't taken yet, oldest first. Guarded by
+    // pendingReplies, and OP_WRITE is wanted while it isn't empty.
+    private final ArrayDeque<ByteBuffer> pendingReplies = new ArrayDeque<ByteBuffer>();
+    private int pendingReplyBytes = 0;
+
+    public NioSession(SocketChannel channel,
+            DataSocketFactory dataSocketFactory, NioListener listener) {
+        super(channel.socket(), dataSocketFactory, Source.LOCAL);
+        this.channel = channel;
+        this.listener = listener;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Called on the selector thread when the control channel is readable.
+     */
+    void onReadable() {
+        int numRead;
+        try {
+            numRead = channel.read(lineBuffer);
+        } catch (IOException e) {
+            myLog.l(Log.INFO, "Connection was dropped");
+            closeSocket();
+            return;
+        }
+        if (numRead == -1) {
+            myLog.i("Control channel reached EOF, quitting");
+            closeSocket();
+            return;
+        }
+        processLines();
+    }
+
+    /**
+     * Dispatches every complete line in the input buffer, stopping early if
+     * one of them has to wait for a running transfer.
+     */
+    private void processLines() {
+        while (pendingCmd == null && channel.isOpen() && !hasPendingReplies()) {
+            String line = nextLine();
+            if (line == null) {
+                break;
+            }
+            Globals.getPlatform().monitor(true, line);
+            if (myLog.isLoggable(Log.DEBUG)) {
+                myLog.l(Log.DEBUG, "Received line from client: " + line);
+            }
+            FtpCmd.dispatchCommand(this, line);
+            flushReplies();
+        }
+    }
+
+    /**
+     * Removes and returns the next '\n' terminated line from the input
+     * buffer, without the terminator. Returns null if no complete line has
+     * been received yet.
+     */
+    private String nextLine() {
+        while (true) {
+            byte[] bytes = lineBuffer.array();
+            int end = lineBuffer.position();
+            int newline = -1;
+            for (int i = 0; i < end; i++) {
+                if (bytes[i] == '\n') {
+                    newline = i;
+                    break;
+                }
+            }
+            if (newline == -1) {
+                if (end == bytes.length) {
+                    // The client sent a line longer than we are willing to
+                    // buffer. Throw it away up to the next newline.
+                    if (!discardingLine) {
+                        myLog.i("Control line too long, discarding");
+                        writeString("500 Command line too long\r\n");
+                    }
+                    discardingLine = true;
+                    lineBuffer.clear();
+                }
+                return null;
+            }
+            int lineEnd = newline;
+            if (lineEnd > 0 && bytes[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            String line = null;
+            if (!discardingLine) {
+                try {
+                    line = new String(bytes, 0, lineEnd, encoding);
+                } catch (UnsupportedEncodingException e) {
+                    line = new String(bytes, 0, lineEnd);
+                }
+            }
+            discardingLine = false;
+            lineBuffer.flip();
+            lineBuffer.position(newline + 1);
+            lineBuffer.compact();
+            if (line != null) {
+                return line;
+            }
+        }
+    }
+
+    /**
+     * Commands that use the data socket go to the transfer pool, the rest are
+     * cheap enough to run directly on the selector thread.
+     */
+    protected void runCommand(final FtpCmd cmd) {
+        if (busy && !cmd.allowedDuringTransfer()) {
+            pendingCmd = cmd;
+            readInterest = false;
+            updateInterest();
+            return;
+        }
+        if (!cmd.usesDataSocket()) {
+            cmd.runMeasured();
+            return;
+        }
+        busy = true;
+        beginTransfer(cmd);
+        transferThreads.execute(new Runnable() {
+            public void run() {
+                try {
+                    runTransfer(cmd);
+                } finally {
+                    listener.runOnSelector(new Runnable() {
+                        public void run() {
+                            onCommandFinished();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Called on the selector thread after a transfer thread finished a
+     * command.
+     */
+    private void onCommandFinished() {
+        busy = false;
+        if (!channel.isOpen()) {
+            return;
+        }
+        // Run the command that was held back, then any the client pipelined
+        // after it, before asking for more input
+        if (pendingCmd != null) {
+            FtpCmd cmd = pendingCmd;
+            pendingCmd = null;
+            runCommand(cmd);
+            flushReplies();
+        }
+        processLines();
+        if (pendingCmd == null) {
+            readInterest = true;
+            updateInterest();
+        }
+    }
+
+    private boolean hasPendingReplies() {
+        synchronized (pendingReplies) {
+            return !pendingReplies.isEmpty();
+        }
+    }
+
+    /**
+     * Sets the interest set from readInterest and whether replies are
+     * waiting to be sent. Must run on the selector thread.
+     */
+    private void updateInterest() {
+        if (key == null) {
+            return;
+        }
+        int ops;
+        if (hasPendingReplies()) {
+            ops = SelectionKey.OP_WRITE;
+        } else {
+            ops = readInterest ? SelectionKey.OP_READ : 0;
+        }
+        try {
+            key.interestOps(ops);
+        } catch (CancelledKeyException e) {
+            // The connection was closed, nothing left to do
+        }
+    }
+
+    /**
+     * The control channel is non-blocking, so whatever part of a reply the
+     * channel doesn't take right away is queued, and sent by onWritable().
+     * This is rare, since replies are short. It may be called on any thread.
+     */
+    protected void sendReplyBytes(byte[] bytes, int offset, int length) {
+        boolean wantWrite = false;
+        // closeSocket() is left until the lock is released, since it takes
+        // other locks of its own
+        String closeReason = null;
+        synchronized (pendingReplies) {
+            ByteBuffer buf = ByteBuffer.wrap(bytes, offset, length);
+            try {
+                // Anything already queued has to go out first
+                if (pendingReplies.isEmpty()) {
+                    channel.write(buf);
+                }
+                if (buf.hasRemaining()) {
+                    if (pendingReplyBytes + buf.remaining() > MAX_PENDING_REPLY_BYTES) {
+                        closeReason = "Client isn't reading replies, closing";
+                    } else {
+                        // The caller reuses its array, so keep a copy
+                        ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+                        copy.put(buf);
+                        copy.flip();
+                        wantWrite = pendingReplies.isEmpty();
+                        pendingReplies.add(copy);
+                        pendingReplyBytes += copy.remaining();
+                    }
+                }
+            } catch (IOException e) {
+                closeReason = "Exception writing socket";
+            }
+        }
+        if (closeReason != null) {
+            myLog.l(Log.INFO, closeReason);
+            closeSocket();
+            return;
+        }
+        dataSocketFactory.reportTraffic(length);
+        if (wantWrite) {
+            listener.runOnSelector(new Runnable() {
+                public void run() {
+                    updateInterest();
+                }
+            });
+        }
+    }
+
+    /**
+     * Called on the selector thread when queued replies can be sent.
+     */
+    void onWritable() {
+        try {
+            synchronized (pendingReplies) {
+                while (!pendingReplies.isEmpty()) {
+                    ByteBuffer buf = pendingReplies.peek();
+                    pendingReplyBytes -= channel.write(buf);
+                    if (buf.hasRemaining()) {
+                        return;
+                    }
+                    pendingReplies.poll();
+                }
+            }
+        } catch (IOException e) {
+            myLog.l(Log.INFO, "Exception writing socket");
+            closeSocket();
+            return;
+        }
+        // Go on with any commands that arrived while we couldn't reply
+        processLines();
+        updateInterest();
+    }
+
+    public boolean isSessionAlive() {
+        return channel.isOpen();
+    }
+
+    public void run() {
+        // NioSessions are driven by their NioListener and never started
+        myLog.l(Log.ERROR, "NioSession must not be run as a thread");
+    }
+}
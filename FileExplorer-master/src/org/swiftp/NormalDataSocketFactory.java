@@ -19,12 +19,12 @@ along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
 
 package org.swiftp;
 
-import net.micode.fileexplorer.FTPServerService;
-
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
 
 import android.util.Log;
 
@@ -38,8 +38,12 @@ public class NormalDataSocketFactory extends DataSocketFactory {
 	 * 
 	 */
 	
-	// Listener socket used for PASV mode
-	ServerSocket server = null;
+	// Listener socket used for PASV mode, borrowed from the PasvPortPool
+	// Volatile because abortTransfer() closes it from another thread
+	volatile PasvPortPool.Lease lease = null;
+	// Only data connections from the control connection's client are
+	// accepted in PASV mode
+	InetAddress clientAddr = null;
 	// Remote IP & port information used for PORT mode
 	InetAddress remoteAddr;
 	int remotePort;
@@ -53,14 +57,13 @@ public class NormalDataSocketFactory extends DataSocketFactory {
 	private void clearState() {
 		/**
 		 * Clears the state of this object, as if no pasv() or port() had occurred.
-		 * All sockets are closed.
+		 * Any PASV listener is given back to the PasvPortPool.
 		 */
-		if(server != null) {
-			try {
-				server.close();
-			} catch (IOException e) {}
+		PasvPortPool.Lease l = lease;
+		if(l != null) {
+			PasvPortPool.getInstance().release(l);
 		}
-		server = null;
+		lease = null;
 		remoteAddr = null;
 		remotePort = 0;
 		myLog.l(Log.DEBUG, "NormalDataSocketFactory state cleared");
@@ -68,16 +71,13 @@ public class NormalDataSocketFactory extends DataSocketFactory {
 	
 	public int onPasv() {
 		clearState();
-		try {
-			// Listen on any port (port parameter 0)
-			server = new ServerSocket(0, Defaults.tcpConnectionBacklog);
-			myLog.l(Log.DEBUG, "Data socket pasv() listen successful");
-			return server.getLocalPort();
-		} catch(IOException e) {
-			myLog.l(Log.ERROR, "Data socket creation error");
-			clearState();
+		PasvPortPool.Lease l = PasvPortPool.getInstance().acquire();
+		if(l == null) {
 			return 0;
 		}
+		lease = l;
+		myLog.l(Log.DEBUG, "Data socket pasv() listen successful");
+		return l.getPort();
 	}
 
 	public boolean onPort(InetAddress remoteAddr, int remotePort) {
@@ -88,7 +88,8 @@ public class NormalDataSocketFactory extends DataSocketFactory {
 	}
 	
 	public Socket onTransfer() {
-		if(server == null) {
+		PasvPortPool.Lease l = lease;
+		if(l == null) {
 			// We're in PORT mode (not PASV)
 			if(remoteAddr == null || remotePort == 0) {
 				myLog.l(Log.INFO, "PORT mode but not initialized correctly");
@@ -97,7 +98,8 @@ public class NormalDataSocketFactory extends DataSocketFactory {
 			}
 			Socket socket;
 			try {
-				socket = new Socket(remoteAddr, remotePort);
+				socket = SocketChannel.open(
+						new InetSocketAddress(remoteAddr, remotePort)).socket();
 			} catch (IOException e) {
 				myLog.l(Log.INFO, 
 						"Couldn't open PORT data socket to: " +
@@ -120,10 +122,16 @@ public class NormalDataSocketFactory extends DataSocketFactory {
 			// We're in PASV mode (not PORT)
 			Socket socket = null;
 			try {
-				socket = server.accept();
+				socket = l.accept(clientAddr);
+				socket.setSoTimeout(Defaults.SO_TIMEOUT_MS);
 				myLog.l(Log.DEBUG, "onTransfer pasv accept successful");
+			} catch (SocketTimeoutException e) {
+				myLog.l(Log.INFO, "Timed out waiting for PASV connection");
+				closeQuietly(socket);
+				socket = null;
 			} catch (Exception e) {
 				myLog.l(Log.INFO, "Exception accepting PASV socket");
+				closeQuietly(socket);
 				socket = null;
 			}
 			clearState();
@@ -137,16 +145,41 @@ public class NormalDataSocketFactory extends DataSocketFactory {
 	 * @return The port number, or -1 if error.
 	 */
 	public int getPortNumber() {
-		if(server != null) {
-			return server.getLocalPort(); // returns -1 if serversocket is unbound 
+		PasvPortPool.Lease l = lease;
+		if(l != null) {
+			return l.getPort(); // returns -1 if serversocket is unbound 
 		} else {
 			return -1;
 		}
 	}
 	
+	public void abortTransfer() {
+		PasvPortPool.Lease l = lease;
+		if(l != null) {
+			l.abort();  // makes a pending accept() throw
+			PasvPortPool.getInstance().release(l);
+		}
+	}
+	
+	public void setClientAddress(InetAddress clientAddr) {
+		this.clientAddr = clientAddr;
+	}
+	
+	public void onSessionClosed() {
+		clearState();
+	}
+	
+	private static void closeQuietly(Socket socket) {
+		if(socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+	
 	public InetAddress getPasvIp() {
 		//String retVal = server.getInetAddress().getHostAddress();
-		return FTPServerService.getWifiIp();
+		return Globals.getPlatform().getWifiIp();
 	}
 	
 	public void reportTraffic(long bytes) {
@@ -0,0 +1,288 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+
+import android.util.Log;
+
+/**
+ * Hands out listening sockets for PASV. Binding, listening on and closing a
+ * new socket for every transfer is a large part of the cost of mirroring
+ * many small files, so a listener is returned here after its transfer and 
+ * kept listening for the next PASV from any session.
+ * 
+ * When Defaults.getPasvPortMin() and getPasvPortMax() are both nonzero, 
+ * listeners are only bound in that range, so the range also caps how many
+ * sessions can wait for a data connection at once. Otherwise any free port
+ * is used. At most Defaults.getPasvPoolSize() idle listeners are kept.
+ * 
+ * Idle listeners are reused least recently used first, which spreads the 
+ * work evenly over the ports and makes it less likely that a late 
+ * connection meant for an earlier transfer reaches a new one. A session 
+ * holds at most one lease, since each PASV releases the last, and its 
+ * lease is reclaimed when the session closes. Any connection that reached
+ * a listener while it was idle is dropped before it is leased out.
+ */
+public class PasvPortPool {
+	private static final PasvPortPool instance = new PasvPortPool();
+	private static final MyLog myLog = new MyLog(PasvPortPool.class.getName());
+	
+	// Least recently used first
+	private final LinkedList<ServerSocket> idle = new LinkedList<ServerSocket>();
+	// Ports of every listener we hold, idle or leased
+	private final Set<Integer> ports = new HashSet<Integer>();
+	private int nextPort = 0;
+	
+	public static PasvPortPool getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * One session's use of a listener, from PASV until its transfer is done.
+	 */
+	public static class Lease {
+		private final ServerSocket socket;
+		private boolean released = false;
+		
+		Lease(ServerSocket socket) {
+			this.socket = socket;
+		}
+		
+		public int getPort() {
+			return socket.getLocalPort();
+		}
+		
+		/**
+		 * Waits up to Defaults.getPasvAcceptTimeoutMs() for the data 
+		 * connection. Connections from any address other than client are 
+		 * closed and waited past, so nobody else can take over the 
+		 * transfer. A null client accepts anyone.
+		 * 
+		 * @throws SocketTimeoutException if nobody connected in time
+		 */
+		public Socket accept(InetAddress client) throws IOException {
+			long timeout = Defaults.getPasvAcceptTimeoutMs();
+			long deadline = System.currentTimeMillis() + timeout;
+			while(true) {
+				if(timeout > 0) {
+					long left = deadline - System.currentTimeMillis();
+					if(left <= 0) {
+						Metrics.countPasvAcceptTimeout();
+						throw new SocketTimeoutException("PASV accept timed out");
+					}
+					socket.setSoTimeout((int)Math.min(left, Integer.MAX_VALUE));
+				} else {
+					socket.setSoTimeout(0);
+				}
+				Socket dataSocket;
+				try {
+					dataSocket = socket.accept();
+				} catch (SocketTimeoutException e) {
+					Metrics.countPasvAcceptTimeout();
+					throw e;
+				}
+				if(client == null || client.equals(dataSocket.getInetAddress())) {
+					return dataSocket;
+				}
+				myLog.l(Log.INFO, "Refusing PASV connection from " 
+						+ dataSocket.getInetAddress() + ", expected " + client);
+				Metrics.countPasvForeignConnection();
+				try {
+					dataSocket.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		
+		/**
+		 * Makes a pending accept() fail at once. The listener can't be used
+		 * again after this, and is dropped when the lease is released.
+		 */
+		public void abort() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+	
+	/**
+	 * Returns a listener for one PASV, or null if none could be bound or
+	 * every port in the range is in use.
+	 */
+	public synchronized Lease acquire() {
+		int min = Defaults.getPasvPortMin();
+		int max = Defaults.getPasvPortMax();
+		boolean ranged = min > 0 && max >= min;
+		while(!idle.isEmpty()) {
+			ServerSocket socket = idle.removeFirst();
+			int port = socket.getLocalPort();
+			if(socket.isClosed() || (ranged && (port < min || port > max))) {
+				// Closed under us, or the range was changed since
+				discard(socket);
+				continue;
+			}
+			if(!drain(socket)) {
+				discard(socket);
+				continue;
+			}
+			Metrics.countPasvListenerReused();
+			return new Lease(socket);
+		}
+		
+		ServerSocket socket = ranged ? bindInRange(min, max) : bind(0);
+		if(socket == null) {
+			return null;
+		}
+		ports.add(socket.getLocalPort());
+		Metrics.countPasvListenerBound();
+		return new Lease(socket);
+	}
+	
+	/**
+	 * Returns a lease's listener to the pool, or closes it if it can't be
+	 * reused or the pool is full. Releasing a lease more than once is
+	 * harmless, so both the transfer and the session closing may do it.
+	 */
+	public synchronized void release(Lease lease) {
+		if(lease.released) {
+			return;
+		}
+		lease.released = true;
+		ServerSocket socket = lease.socket;
+		if(socket.isClosed() || idle.size() >= Defaults.getPasvPoolSize()) {
+			discard(socket);
+		} else {
+			idle.addLast(socket);
+		}
+	}
+	
+	/**
+	 * Closes every idle listener. Called when the server stops.
+	 */
+	public synchronized void closeIdle() {
+		Iterator<ServerSocket> it = idle.iterator();
+		while(it.hasNext()) {
+			discard(it.next());
+			it.remove();
+		}
+	}
+	
+	/**
+	 * The number of listeners currently held, idle or leased.
+	 */
+	public synchronized int getListenerCount() {
+		return ports.size();
+	}
+	
+	private void discard(ServerSocket socket) {
+		ports.remove(socket.getLocalPort());
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+	
+	private ServerSocket bindInRange(int min, int max) {
+		int rangeSize = max - min + 1;
+		if(ports.size() >= rangeSize) {
+			myLog.l(Log.INFO, "All PASV ports are in use");
+			return null;
+		}
+		if(nextPort < min || nextPort > max) {
+			nextPort = min;
+		}
+		for(int tries = 0; tries < rangeSize; tries++) {
+			int port = nextPort;
+			nextPort = port == max ? min : port + 1;
+			if(ports.contains(port)) {
+				continue;
+			}
+			ServerSocket socket = bind(port);
+			if(socket != null) {
+				return socket;
+			}
+		}
+		myLog.l(Log.INFO, "No free PASV port between " + min + " and " + max);
+		return null;
+	}
+	
+	/**
+	 * Binds a listener to the given port, or any port if it is zero. The 
+	 * socket is created from a channel so that accepted data sockets have
+	 * channels too, which CmdRETR needs for zero-copy sends.
+	 */
+	private ServerSocket bind(int port) {
+		ServerSocket socket = null;
+		try {
+			socket = ServerSocketChannel.open().socket();
+			socket.setReuseAddress(true);
+			socket.bind(new InetSocketAddress(port), Defaults.tcpConnectionBacklog);
+			return socket;
+		} catch (IOException e) {
+			if(port == 0) {
+				myLog.l(Log.ERROR, "Data socket creation error");
+			}
+			if(socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e2) {
+				}
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * Closes any connections that are waiting on an idle listener. Returns
+	 * false if the listener is broken.
+	 */
+	private boolean drain(ServerSocket socket) {
+		ServerSocketChannel channel = socket.getChannel();
+		try {
+			channel.configureBlocking(false);
+			try {
+				SocketChannel stale;
+				while((stale = channel.accept()) != null) {
+					myLog.l(Log.DEBUG, "Dropping stale PASV connection");
+					stale.close();
+				}
+			} finally {
+				channel.configureBlocking(true);
+			}
+			return true;
+		} catch (IOException e) {
+			myLog.l(Log.INFO, "Idle PASV listener failed: " + e);
+			return false;
+		}
+	}
+}
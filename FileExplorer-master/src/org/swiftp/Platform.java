@@ -0,0 +1,74 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.io.File;
+import java.net.InetAddress;
+
+/**
+ * Everything the FTP engine needs from the system it runs on. In the app
+ * this is net.micode.fileexplorer.AndroidPlatform; HeadlessServer installs
+ * a JvmPlatform so that the same engine runs as a plain Java process. Set
+ * with Globals.setPlatform() before the first session starts.
+ */
+public interface Platform {
+	/**
+	 * Writes a message to the system log. Level filtering has already
+	 * been done.
+	 */
+	public void log(int level, String tag, String message);
+	
+	/**
+	 * Adds a message to the server log shown to the user.
+	 */
+	public void showLog(int level, String message);
+	
+	/**
+	 * Called with each line sent or received on a control connection.
+	 */
+	public void monitor(boolean incoming, String line);
+	
+	/**
+	 * The version named in the welcome banner, may be null.
+	 */
+	public String getVersion();
+	
+	/**
+	 * Called when a client has created, changed or deleted a file, so that
+	 * media indexes can pick up the change.
+	 */
+	public void fileChanged(String path);
+	
+	/**
+	 * A private directory where the server may keep state between runs,
+	 * such as the checksum journal, or null if there is none.
+	 */
+	public File getFilesDir();
+	
+	/**
+	 * The directory served when none has been configured.
+	 */
+	public File getDefaultChrootDir();
+	
+	/**
+	 * The address of the Wi-Fi interface, or null if there isn't one.
+	 */
+	public InetAddress getWifiIp();
+}
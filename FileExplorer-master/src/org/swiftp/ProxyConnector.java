@@ -31,9 +31,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
 
-import net.micode.fileexplorer.FTPServerService;
-import net.micode.fileexplorer.R;
-
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -51,7 +48,6 @@ public class ProxyConnector extends Thread {
 	public static final String PREFERRED_SERVER = "preferred_server"; //preferences
 	public static final int CONNECT_TIMEOUT = 5000;
 	
-	private FTPServerService ftpServerService;
 	private MyLog myLog = new MyLog(getClass().getName());
 	private JSONObject response = null;
 	private Thread responseWaiter = null;
@@ -77,8 +73,7 @@ public class ProxyConnector extends Thread {
 	 * explanation of how proxying works. Hint: it's complicated.
 	 */ 
 	
-	public ProxyConnector(FTPServerService ftpServerService) {
-		this.ftpServerService = ftpServerService;
+	public ProxyConnector() {
 		this.proxyUsage = getPersistedProxyUsage();
 		setProxyState(State.DISCONNECTED);
 		Globals.setProxyConnector(this);
@@ -337,13 +332,13 @@ public class ProxyConnector extends Thread {
 			} else if(action.equals("message")) {
 				proxyMessage = json.getString("text");
 				myLog.i("Got news from proxy server: \"" + proxyMessage + "\"");
-				FTPServerService.updateClients(); // UI update to show message
+				UiUpdater.updateClients(); // UI update to show message
 			} else if(action.equals("noop")) {
 				myLog.d("Proxy noop");
 			} else {
 				myLog.l(Log.INFO, "Unsupported incoming action: " + action);
 			}
-			// If we're starting a control session register with ftpServerService
+			// If we're starting a control session register with the SessionManager
 		} catch (JSONException e){
 			myLog.l(Log.INFO, "JSONException in proxy incomingCommand");
 		}
@@ -360,8 +355,9 @@ public class ProxyConnector extends Thread {
 		ProxyDataSocketFactory dataSocketFactory = new ProxyDataSocketFactory();
 		SessionThread thread = new SessionThread(socket, dataSocketFactory,
 				SessionThread.Source.PROXY);
-		thread.start();
-		ftpServerService.registerSessionThread(thread);
+		if(SessionManager.getInstance().register(thread)) {
+			thread.start();
+		}
 	}
 	
 	/**
@@ -738,7 +734,7 @@ public class ProxyConnector extends Thread {
 		long oldProxyUsage = proxyUsage;
 		proxyUsage += num;
 		if(proxyUsage % UPDATE_USAGE_BYTES < oldProxyUsage % UPDATE_USAGE_BYTES) {
-			FTPServerService.updateClients();
+			UiUpdater.updateClients();
 			persistProxyUsage();
 		}
 	}
@@ -750,7 +746,7 @@ public class ProxyConnector extends Thread {
 	private void setProxyState(State state) {
 		proxyState = state;
 		myLog.l(Log.DEBUG, "Proxy state changed to " + state, true);
-		FTPServerService.updateClients(); // UI update
+		UiUpdater.updateClients(); // UI update
 	}
 	
 	static public String stateToString(State s) {
@@ -68,6 +68,15 @@ public class ProxyDataSocketFactory extends DataSocketFactory {
 		clientPort = 0;
 	}
 
+	public void abortTransfer() {
+		Socket s = socket;
+		if(s != null) {
+			try {
+				s.close();
+			} catch (Exception e) {}
+		}
+	}
+
 	public InetAddress getPasvIp() {
 		ProxyConnector pc = Globals.getProxyConnector();
 		if(pc == null) {
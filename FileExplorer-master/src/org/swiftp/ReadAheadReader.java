@@ -0,0 +1,193 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Reads a file ahead of the thread that sends it, so that a slow storage 
+ * device and the network are busy at the same time instead of taking turns.
+ * A reader thread fills a ring of Defaults.getRetrReadAheadBuffers() chunks
+ * while the sender empties them, so a session never holds more than that
+ * many chunks of the file in memory.
+ * 
+ * Both sides time how long they wait for each other. If the sender spends
+ * its time waiting for full chunks, storage is the bottleneck, and if the
+ * reader waits for empty ones, it is the network. The totals for each
+ * transfer go to Metrics when close() is called.
+ * 
+ * Usage: call next() until it returns null, sending each chunk and then
+ * handing it back with recycle(), and always call close() in a finally.
+ */
+public class ReadAheadReader {
+	private static final MyLog myLog = new MyLog(ReadAheadReader.class.getName());
+	
+	// Reader threads are shared by all sessions, and idle ones exit after a
+	// minute. LoadGenerator lets them go sooner between runs.
+	static final ThreadPoolExecutor readers = new ThreadPoolExecutor(0,
+			Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "RETR read-ahead");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	
+	/**
+	 * A buffer and how much of it holds file data.
+	 */
+	public static class Chunk {
+		public final byte[] data;
+		public int length;
+		
+		Chunk(int size) {
+			data = new byte[size];
+		}
+	}
+	
+	// Queued by the reader after the last chunk
+	private static final Chunk END = new Chunk(0);
+	
+	private final InputStream in;
+	private final BlockingQueue<Chunk> empty;
+	// One more slot than there are chunks, for END
+	private final BlockingQueue<Chunk> full;
+	private Future<?> task = null;
+	private volatile IOException readError = null;
+	private volatile long readerWaitNanos = 0;
+	private long senderWaitNanos = 0;
+	private boolean finished = false;
+	
+	public ReadAheadReader(InputStream in, int buffers, int chunkSize) {
+		this.in = in;
+		empty = new ArrayBlockingQueue<Chunk>(buffers);
+		full = new ArrayBlockingQueue<Chunk>(buffers + 1);
+		for(int i = 0; i < buffers; i++) {
+			empty.add(new Chunk(chunkSize));
+		}
+	}
+	
+	/**
+	 * Starts reading on a reader thread.
+	 */
+	public void start() {
+		task = readers.submit(new Runnable() {
+			public void run() {
+				readLoop();
+			}
+		});
+	}
+	
+	private void readLoop() {
+		try {
+			while(true) {
+				long waitStart = System.nanoTime();
+				Chunk chunk = empty.take();
+				readerWaitNanos += System.nanoTime() - waitStart;
+				int bytesRead = in.read(chunk.data);
+				if(bytesRead == -1) {
+					break;
+				}
+				chunk.length = bytesRead;
+				full.put(chunk);
+			}
+		} catch (IOException e) {
+			readError = e;
+		} catch (InterruptedException e) {
+			// close() was called, the sender is gone
+			return;
+		}
+		full.add(END);
+	}
+	
+	/**
+	 * Returns the next chunk of the file, waiting for the reader if need be,
+	 * or null at the end of the file.
+	 * 
+	 * @throws IOException if reading the file failed
+	 */
+	public Chunk next() throws IOException {
+		if(finished) {
+			return null;
+		}
+		Chunk chunk;
+		long waitStart = System.nanoTime();
+		try {
+			chunk = full.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for file data");
+		}
+		senderWaitNanos += System.nanoTime() - waitStart;
+		if(chunk == END) {
+			finished = true;
+			if(readError != null) {
+				throw readError;
+			}
+			return null;
+		}
+		return chunk;
+	}
+	
+	/**
+	 * Hands a chunk returned by next() back to the reader to be refilled.
+	 */
+	public void recycle(Chunk chunk) {
+		empty.add(chunk);
+	}
+	
+	/**
+	 * Stops the reader if it is still running, and records the wait times
+	 * of a transfer that was read to the end. The caller still owns and
+	 * closes the input stream.
+	 */
+	public void close() {
+		if(task != null) {
+			task.cancel(true);
+		}
+		if(finished && readError == null) {
+			Metrics.recordReadAheadWaits(senderWaitNanos, readerWaitNanos);
+			if(myLog.isLoggable(Log.DEBUG)) {
+				myLog.d("RETR read-ahead waited " + senderWaitNanos / 1000000 
+						+ " ms for storage and " + readerWaitNanos / 1000000 
+						+ " ms for the network");
+			}
+		}
+	}
+	
+	public long getSenderWaitNanos() {
+		return senderWaitNanos;
+	}
+	
+	public long getReaderWaitNanos() {
+		return readerWaitNanos;
+	}
+}
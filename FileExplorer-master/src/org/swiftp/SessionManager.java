@@ -0,0 +1,236 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * Keeps track of every control session, decides whether a new one may start,
+ * and closes sessions that have been idle too long.
+ * 
+ * A session is admitted only while fewer than Defaults.getMaxSessions()
+ * sessions are open, and fewer than Defaults.getMaxSessionsPerAddress() come
+ * from the same client address. A refused client gets a 421 reply and its
+ * session is closed before a thread is ever started for it. Sessions that
+ * come through the proxy all share the proxy's address, so only the global
+ * limit applies to them.
+ * 
+ * The registry is a concurrent set and the counts are atomic, so neither
+ * admitting nor closing a session scans the registry or takes a lock. Only
+ * the reaper thread walks the set, every few seconds.
+ */
+public class SessionManager {
+	private static final SessionManager instance = new SessionManager();
+	private static final MyLog myLog = new MyLog(SessionManager.class.getName());
+	
+	private final Set<SessionThread> sessions = Collections.newSetFromMap(
+			new ConcurrentHashMap<SessionThread, Boolean>());
+	private final AtomicInteger sessionCount = new AtomicInteger();
+	// Sessions per client address. A counter that drops to zero is retired
+	// by setting it to -1 before it is removed, so that a concurrent
+	// register() never increments a counter that is no longer in the map.
+	private final ConcurrentMap<InetAddress, AtomicInteger> addressCounts = 
+		new ConcurrentHashMap<InetAddress, AtomicInteger>();
+	private Thread reaper = null;
+	
+	public static SessionManager getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Admits and records a new session, which must not have been started
+	 * yet. If a limit is reached, the client is sent a 421 reply, the session
+	 * is closed, and false is returned.
+	 */
+	public boolean register(SessionThread session) {
+		String refusal = null;
+		InetAddress address = getLimitedAddress(session);
+		if(!reserve(sessionCount, Defaults.getMaxSessions())) {
+			refusal = "421 Too many users connected, try again later\r\n";
+		} else if(address != null && !reserveAddress(address)) {
+			sessionCount.decrementAndGet();
+			refusal = "421 Too many connections from your address\r\n";
+		}
+		if(refusal != null) {
+			myLog.l(Log.INFO, "Refusing session: " + refusal.trim());
+			Metrics.countRefusedSession();
+			session.writeString(refusal);
+			session.closeSocket();
+			return false;
+		}
+		sessions.add(session);
+		if(myLog.isLoggable(Log.DEBUG)) {
+			myLog.d("Registered session, " + sessionCount.get() + " open");
+		}
+		return true;
+	}
+	
+	/**
+	 * Forgets a session and frees its places. Called by the session when its
+	 * control connection closes; calling it more than once is harmless.
+	 */
+	void unregister(SessionThread session) {
+		if(!sessions.remove(session)) {
+			return;
+		}
+		sessionCount.decrementAndGet();
+		InetAddress address = getLimitedAddress(session);
+		if(address != null) {
+			releaseAddress(address);
+		}
+	}
+	
+	public int getSessionCount() {
+		return sessionCount.get();
+	}
+	
+	/**
+	 * Closes every open session, as when the server stops.
+	 */
+	public void closeAll() {
+		myLog.i("Terminating " + sessionCount.get() + " session(s)");
+		for(SessionThread session : sessions) {
+			session.closeDataSocket();
+			session.closeSocket();
+		}
+	}
+	
+	/**
+	 * Starts the thread that closes idle sessions, if it isn't running.
+	 */
+	public synchronized void startReaper() {
+		if(reaper != null) {
+			return;
+		}
+		reaper = new Thread("SessionReaper") {
+			public void run() {
+				while(!isInterrupted()) {
+					long timeout = Defaults.getIdleTimeoutMs();
+					try {
+						// Check often enough that no session lives much more
+						// than a quarter of the timeout past it
+						Thread.sleep(Math.max(1000, Math.min(30000, 
+								timeout > 0 ? timeout / 4 : 30000)));
+					} catch (InterruptedException e) {
+						break;
+					}
+					reapIdleSessions();
+				}
+			}
+		};
+		reaper.setDaemon(true);
+		reaper.start();
+	}
+	
+	public synchronized void stopReaper() {
+		if(reaper != null) {
+			reaper.interrupt();
+			reaper = null;
+		}
+	}
+	
+	void reapIdleSessions() {
+		long timeout = Defaults.getIdleTimeoutMs();
+		if(timeout <= 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for(SessionThread session : sessions) {
+			if(session.getIdleMillis(now) > timeout) {
+				myLog.l(Log.INFO, "Closing idle session");
+				Metrics.countReapedSession();
+				session.writeString("421 Idle timeout, closing control connection\r\n");
+				session.closeSocket();
+			}
+		}
+	}
+	
+	/**
+	 * The address the per-address limit applies to, or null if it doesn't
+	 * apply to this session.
+	 */
+	private static InetAddress getLimitedAddress(SessionThread session) {
+		if(session.getSource() != SessionThread.Source.LOCAL) {
+			return null;
+		}
+		Socket socket = session.getSocket();
+		return socket == null ? null : socket.getInetAddress();
+	}
+	
+	/**
+	 * Increments count unless that would take it past limit, zero meaning
+	 * no limit.
+	 */
+	private static boolean reserve(AtomicInteger count, int limit) {
+		while(true) {
+			int n = count.get();
+			if(limit > 0 && n >= limit) {
+				return false;
+			}
+			if(count.compareAndSet(n, n + 1)) {
+				return true;
+			}
+		}
+	}
+	
+	private boolean reserveAddress(InetAddress address) {
+		int limit = Defaults.getMaxSessionsPerAddress();
+		while(true) {
+			AtomicInteger count = addressCounts.get(address);
+			if(count == null) {
+				AtomicInteger fresh = new AtomicInteger(0);
+				count = addressCounts.putIfAbsent(address, fresh);
+				if(count == null) {
+					count = fresh;
+				}
+			}
+			int n = count.get();
+			if(n < 0) {
+				// Retired, help remove it and try again with a new one
+				addressCounts.remove(address, count);
+				continue;
+			}
+			if(limit > 0 && n >= limit) {
+				return false;
+			}
+			if(count.compareAndSet(n, n + 1)) {
+				return true;
+			}
+		}
+	}
+	
+	private void releaseAddress(InetAddress address) {
+		AtomicInteger count = addressCounts.get(address);
+		if(count == null) {
+			return;
+		}
+		if(count.decrementAndGet() == 0 && count.compareAndSet(0, -1)) {
+			addressCounts.remove(address, count);
+		}
+	}
+}
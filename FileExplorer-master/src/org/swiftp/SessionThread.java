@@ -19,9 +19,6 @@ along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
 
 package org.swiftp;
 
-import net.micode.fileexplorer.FTPServerService;
-
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
@@ -32,6 +29,18 @@ import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import android.util.Log;
 
@@ -47,20 +56,81 @@ public class SessionThread extends Thread {
     protected boolean authenticated = false;
     protected File workingDir = Globals.getChrootDir();
     // protected ServerSocket dataServerSocket = null;
-    protected Socket dataSocket = null;
+    // Volatile because abortTransfer() closes it from another thread
+    protected volatile Socket dataSocket = null;
     // protected FTPServerService service;
     protected File renameFrom = null;
     // protected InetAddress outDataDest = null;
     // protected int outDataPort = 20; // 20 is the default ftp-data port
     protected DataSocketFactory dataSocketFactory;
     OutputStream dataOutputStream = null;
+    InputStream dataInputStream = null;
+    // MODE Z state. The deflater and inflater only exist during a transfer.
+    protected boolean compressedMode = false;
+    protected int compressionLevel = Defaults.getModeZLevel();
+    private Deflater dataDeflater = null;
+    private Inflater dataInflater = null;
+    // Set by OPTS HASH and RANG, used by HASH. The range end is exclusive,
+    // -1 meaning the end of the file.
+    protected String hashAlgorithm = ChecksumCache.ALGORITHMS[0];
+    protected long hashRangeStart = 0;
+    protected long hashRangeEnd = -1;
     private boolean sendWelcomeBanner;
     protected String encoding = Defaults.SESSION_ENCODING;
     protected Source source;
     int authFails = 0;
+    // Set by REST, used and cleared by the next RETR, STOR or APPE
+    protected long restartOffset = 0;
+    // Bytes the client said with ALLO that its next upload will need
+    protected long allocationSize = 0;
     
+    // Reply lines are gathered here and sent a whole reply at a time
+    private byte[] replyBuffer = new byte[CONTROL_BUFFER_SIZE];
+    private int replyLength = 0;
+    private final Object replyLock = new Object();
+    // Data connection traffic for this session, also added to Metrics
+    protected volatile long bytesSent = 0;
+    protected volatile long bytesReceived = 0;
+    protected BandwidthLimiter bandwidthLimiter = new BandwidthLimiter();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private OutputStream controlOut = null;
+    // When the client last sent a command, for the idle session reaper
+    private volatile long lastActivity = System.currentTimeMillis();
+    // A command that uses the data socket runs on a transfer thread, so
+    // that ABOR and STAT can still be read while it runs. The state moves
+    // from TRANSFER_IDLE to TRANSFER_RUNNING and maybe TRANSFER_ABORTED
+    // without locks, since closeSocket() aborts from under the reply lock.
+    // transferCmd is cleared only once the transfer's last reply is out.
+    private final AtomicInteger transferState = new AtomicInteger(TRANSFER_IDLE);
+    private final Object transferLock = new Object();
+    private FtpCmd transferCmd = null;
+    private long transferStartTime = 0;
+    private long transferStartBytes = 0;
+
     public enum Source {LOCAL, PROXY}; // where did this connection come from?
+    public static final int CONTROL_BUFFER_SIZE = 2048;
+    public static final int DEFLATE_BUFFER_SIZE = 16384;
     public static int MAX_AUTH_FAILS = 3;
+    private static final int TRANSFER_IDLE = 0;
+    private static final int TRANSFER_RUNNING = 1;
+    private static final int TRANSFER_ABORTED = 2;
+    // Transfers of all sessions, NioSessions included, run here. A session
+    // runs one transfer at a time, so there are never more threads than
+    // sessions, whatever the session limit is. Idle threads are reused
+    // and exit after a minute, so a quiet server holds none. LoadGenerator
+    // lets them go sooner between runs.
+    static final ThreadPoolExecutor transferThreads;
+    static {
+        transferThreads = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "Transfer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
     /**
      * Used when we get a PORT command to open up an outgoing socket.
      * 
@@ -81,7 +151,9 @@ public class SessionThread extends Thread {
     public boolean sendViaDataSocket(String string) {
         try {
             byte[] bytes = string.getBytes(encoding);
-            myLog.d("Using data connection encoding: " + encoding);
+            if (myLog.isLoggable(Log.DEBUG)) {
+                myLog.d("Using data connection encoding: " + encoding);
+            }
             return sendViaDataSocket(bytes, bytes.length);
         } catch (UnsupportedEncodingException e) {
             myLog.l(Log.ERROR, "Unsupported encoding for data socket send");
@@ -101,6 +173,16 @@ public class SessionThread extends Thread {
      * @return
      */
     public boolean sendViaDataSocket(byte[] bytes, int start, int len) {
+        return sendViaDataSocket(bytes, start, len, true);
+    }
+
+    /**
+     * Like sendViaDataSocket(byte[], int, int), but lets the caller mark
+     * the bytes as interactive rather than bulk traffic. Interactive traffic,
+     * such as a directory listing, is never delayed by the bandwidth limits.
+     */
+    public boolean sendViaDataSocket(byte[] bytes, int start, int len,
+            boolean bulk) {
 
         if (dataOutputStream == null) {
             myLog.l(Log.INFO, "Can't send via null dataOutputStream");
@@ -116,7 +198,78 @@ public class SessionThread extends Thread {
             myLog.l(Log.INFO, e.toString());
             return false;
         }
-        dataSocketFactory.reportTraffic(len);
+        countSent(len, bulk);
+        return true;
+    }
+
+    /**
+     * Sends count bytes of a file, starting at position, over the
+     * already-established data socket. When the data socket has a channel
+     * the bytes are moved with FileChannel.transferTo, which lets the kernel
+     * copy them straight from the file to the socket (sendfile on Linux)
+     * instead of through the Java heap. Sockets without a channel, such as
+     * the ones from the proxy, fall back to a buffered copy.
+     * 
+     * @return Whether the send completed successfully
+     */
+    public boolean sendFileViaDataSocket(FileChannel file, long position,
+            long count) {
+        if (dataOutputStream == null) {
+            myLog.l(Log.INFO, "Can't send via null dataOutputStream");
+            return false;
+        }
+        SocketChannel socketChannel = dataSocket.getChannel();
+        if (socketChannel == null || compressedMode) {
+            // MODE Z has to pass the bytes through the deflater
+            return sendFileViaBuffer(file, position, count);
+        }
+        long end = position + count;
+        try {
+            while (position < end) {
+                long chunk = Math.min(end - position,
+                        BandwidthLimiter.isLimiting() ? Defaults.getDataChunkSize()
+                                : Defaults.getZeroCopyChunkSize());
+                long sent = file.transferTo(position, chunk, socketChannel);
+                if (sent <= 0) {
+                    // The file must have shrunk under us
+                    myLog.l(Log.INFO, "transferTo made no progress, file truncated?");
+                    break;
+                }
+                position += sent;
+                countSent(sent, true);
+            }
+        } catch (IOException e) {
+            myLog.l(Log.INFO, "Couldn't transfer file to data socket");
+            myLog.l(Log.INFO, e.toString());
+            return false;
+        }
+        return true;
+    }
+
+    private boolean sendFileViaBuffer(FileChannel file, long position,
+            long count) {
+        byte[] bytes = new byte[Defaults.getDataChunkSize()];
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        try {
+            file.position(position);
+            while (count > 0) {
+                buf.clear();
+                if (count < buf.capacity()) {
+                    buf.limit((int) count);
+                }
+                int bytesRead = file.read(buf);
+                if (bytesRead == -1) {
+                    break;
+                }
+                if (!sendViaDataSocket(bytes, bytesRead)) {
+                    return false;
+                }
+                count -= bytesRead;
+            }
+        } catch (IOException e) {
+            myLog.l(Log.INFO, "Error reading file for data socket");
+            return false;
+        }
         return true;
     }
 
@@ -132,23 +285,38 @@ public class SessionThread extends Thread {
      *         0 if there was a read error
      */
     public int receiveFromDataSocket(byte[] buf) {
+        return receiveFromDataSocket(ByteBuffer.wrap(buf));
+    }
+
+    /**
+     * Like receiveFromDataSocket(byte[]), but reads into the space between
+     * the position and limit of a heap ByteBuffer, so callers can reuse one
+     * buffer for a whole transfer. On success the position is advanced past
+     * the bytes read.
+     */
+    public int receiveFromDataSocket(ByteBuffer buf) {
         int bytesRead;
 
+        if (transferState.get() == TRANSFER_ABORTED) {
+            // The closed socket would otherwise look unconnected
+            myLog.l(Log.INFO, "Transfer aborted, not receiving");
+            return 0;
+        }
         if (dataSocket == null) {
             myLog.l(Log.INFO, "Can't receive from null dataSocket");
             return -2;
         }
-        if (!dataSocket.isConnected()) {
+        if (!dataSocket.isConnected() || dataInputStream == null) {
             myLog.l(Log.INFO, "Can't receive from unconnected socket");
             return -2;
         }
-        InputStream in;
         try {
-            in = dataSocket.getInputStream();
-            // If the read returns 0 bytes, the stream is not yet
-            // closed, but we just want to read again.
-            while ((bytesRead = in.read(buf, 0, buf.length)) == 0) {
-            }
+            // We read through the socket's stream rather than its channel
+            // because only the stream honors SO_TIMEOUT. A blocking read
+            // into a non-empty buffer never returns 0.
+            bytesRead = dataInputStream.read(buf.array(),
+                    buf.arrayOffset() + buf.position(),
+                    buf.remaining());
             if (bytesRead == -1) {
                 // If InputStream.read returns -1, there are no bytes
                 // remaining, so we return 0.
@@ -158,10 +326,39 @@ public class SessionThread extends Thread {
             myLog.l(Log.INFO, "Error reading data socket");
             return 0;
         }
-        dataSocketFactory.reportTraffic(bytesRead);
+        buf.position(buf.position() + bytesRead);
+        countReceived(bytesRead);
         return bytesRead;
     }
 
+    private void countSent(long numBytes, boolean bulk) {
+        bytesSent += numBytes;
+        Metrics.addBytesOut(numBytes);
+        dataSocketFactory.reportTraffic(numBytes);
+        bandwidthLimiter.transferred(numBytes, bulk);
+    }
+
+    private void countReceived(long numBytes) {
+        bytesReceived += numBytes;
+        Metrics.addBytesIn(numBytes);
+        dataSocketFactory.reportTraffic(numBytes);
+        bandwidthLimiter.transferred(numBytes, true);
+    }
+
+    /**
+     * Bytes sent over data connections by this session
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Bytes received over data connections by this session
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
     /**
      * Called when we receive a PASV command.
      * 
@@ -201,14 +398,45 @@ public class SessionThread extends Thread {
      * @return
      */
     public boolean startUsingDataSocket() {
+        return startUsingDataSocket(true);
+    }
+
+    /**
+     * Opens the data connection for a transfer. In MODE Z the streams are
+     * wrapped in a deflater and an inflater. Pass compressible as false for
+     * data that is already compressed, such as media files, which are then
+     * sent in stored (level 0) deflate blocks instead of being compressed
+     * again for nothing.
+     */
+    public boolean startUsingDataSocket(boolean compressible) {
         try {
+            if (transferState.get() == TRANSFER_ABORTED) {
+                return false;
+            }
             dataSocket = dataSocketFactory.onTransfer();
             if (dataSocket == null) {
                 myLog.l(Log.INFO,
                         "dataSocketFactory.onTransfer() returned null");
                 return false;
             }
+            if (transferState.get() == TRANSFER_ABORTED) {
+                // Aborted while we were connecting, too early for
+                // abortTransfer() to find the socket
+                myLog.l(Log.INFO, "Transfer aborted while opening data socket");
+                closeDataSocket();
+                return false;
+            }
             dataOutputStream = dataSocket.getOutputStream();
+            dataInputStream = dataSocket.getInputStream();
+            if (compressedMode) {
+                dataDeflater = new Deflater(compressible ? compressionLevel
+                        : Deflater.NO_COMPRESSION);
+                dataInflater = new Inflater();
+                dataOutputStream = new DeflaterOutputStream(dataOutputStream,
+                        dataDeflater, DEFLATE_BUFFER_SIZE);
+                dataInputStream = new InflaterInputStream(dataInputStream,
+                        dataInflater, DEFLATE_BUFFER_SIZE);
+            }
             return true;
         } catch (IOException e) {
             myLog.l(Log.INFO,
@@ -232,6 +460,15 @@ public class SessionThread extends Thread {
             }
             dataOutputStream = null;
         }
+        dataInputStream = null;
+        if (dataDeflater != null) {
+            dataDeflater.end();
+            dataDeflater = null;
+        }
+        if (dataInflater != null) {
+            dataInflater.end();
+            dataInflater = null;
+        }
         if (dataSocket != null) {
             try {
                 dataSocket.close();
@@ -245,13 +482,159 @@ public class SessionThread extends Thread {
         return cmdSocket.getLocalAddress();
     }
 
+    /**
+     * Sends the welcome banner, if this connection should get one.
+     */
+    protected void greet() {
+        if(sendWelcomeBanner) {
+            writeString("220 SwiFTP " + Globals.getPlatform().getVersion()
+                    + " ready\r\n");
+        }
+    }
+
+    /**
+     * Called by FtpCmd.dispatchCommand once a command has been parsed and
+     * the user is allowed to run it. The thread-per-connection session runs
+     * commands that use the data socket on the shared pool of
+     * transfer threads and goes back to reading the control connection.
+     * Other commands run in place, after waiting for any running transfer
+     * unless they are allowed during one.
+     */
+    protected void runCommand(final FtpCmd cmd) {
+        if (!cmd.allowedDuringTransfer()) {
+            waitForTransfer();
+        }
+        if (!cmd.usesDataSocket()) {
+            cmd.runMeasured();
+            return;
+        }
+        beginTransfer(cmd);
+        transferThreads.execute(new Runnable() {
+            public void run() {
+                runTransfer(cmd);
+            }
+        });
+    }
+
+    /**
+     * Marks cmd as the running transfer. Must be followed by
+     * runTransfer(cmd) on the thread that is to run it, or by endTransfer()
+     * if it never gets to run.
+     */
+    void beginTransfer(FtpCmd cmd) {
+        synchronized (transferLock) {
+            transferCmd = cmd;
+            transferStartTime = System.currentTimeMillis();
+            transferStartBytes = bytesSent + bytesReceived;
+        }
+        transferState.set(TRANSFER_RUNNING);
+    }
+
+    void runTransfer(FtpCmd cmd) {
+        try {
+            cmd.runMeasured();
+        } finally {
+            endTransfer();
+        }
+    }
+
+    /**
+     * Ends the running transfer. If it was aborted, this sends the 226
+     * reply to the ABOR, which must follow the transfer's own reply.
+     * The idle time restarts here, since the client can't be expected to
+     * send a command while its transfer is running.
+     */
+    void endTransfer() {
+        markActive();
+        if (transferState.getAndSet(TRANSFER_IDLE) == TRANSFER_ABORTED) {
+            writeString("226 Abort successful\r\n");
+        }
+        flushReplies();
+        synchronized (transferLock) {
+            transferCmd = null;
+            transferLock.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until no transfer is running and all of its replies are sent.
+     */
+    void waitForTransfer() {
+        synchronized (transferLock) {
+            while (transferCmd != null) {
+                try {
+                    transferLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether ABOR stopped the running transfer. A transfer that couldn't
+     * open its data connection checks this to reply 426, not 425.
+     */
+    public boolean isTransferAborted() {
+        return transferState.get() == TRANSFER_ABORTED;
+    }
+
+    /**
+     * Stops the running transfer by closing its data connection, or the
+     * PASV listener it is waiting on, and waking it from any bandwidth
+     * limiter pause. The transfer then fails with a 426 reply, and
+     * endTransfer() follows that with the 226 for the ABOR.
+     * 
+     * @return false if no transfer was running, or it was already aborted
+     */
+    public boolean abortTransfer() {
+        if (!transferState.compareAndSet(TRANSFER_RUNNING, TRANSFER_ABORTED)) {
+            return false;
+        }
+        dataSocketFactory.abortTransfer();
+        Socket socket = dataSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+        bandwidthLimiter.wakeUp();
+        return true;
+    }
+
+    /**
+     * Describes the running transfer for STAT, or returns null if there is
+     * none.
+     */
+    public String getTransferStatus() {
+        synchronized (transferLock) {
+            if (transferCmd == null) {
+                return null;
+            }
+            String verb = transferCmd.cmdMap != null ? transferCmd.cmdMap
+                    .getName() : "transfer";
+            return verb + " in progress, "
+                    + (bytesSent + bytesReceived - transferStartBytes)
+                    + " bytes in "
+                    + (System.currentTimeMillis() - transferStartTime) / 1000
+                    + " s";
+        }
+    }
+
+    /**
+     * Whether this session still has a live control connection.
+     */
+    public boolean isSessionAlive() {
+        return isAlive();
+    }
+
     static int numNulls = 0;
     public void run() {
         myLog.l(Log.INFO, "SessionThread started");
 
-        if(sendWelcomeBanner) {
-            writeString("220 SwiFTP " + Util.getVersion() + " ready\r\n");
-        }
+        greet();
         // Main loop: read an incoming line and process it
         try {
             BufferedReader in = new BufferedReader(new InputStreamReader(cmdSocket
@@ -260,9 +643,12 @@ public class SessionThread extends Thread {
                 String line;
                 line = in.readLine(); // will accept \r\n or \n for terminator
                 if (line != null) {
-                    FTPServerService.writeMonitor(true, line);
-                    myLog.l(Log.DEBUG, "Received line from client: " + line);
+                    Globals.getPlatform().monitor(true, line);
+                    if (myLog.isLoggable(Log.DEBUG)) {
+                        myLog.l(Log.DEBUG, "Received line from client: " + line);
+                    }
                     FtpCmd.dispatchCommand(this, line);
+                    flushReplies();
                 } else {
                     myLog.i("readLine gave null, quitting");
                     break;
@@ -291,19 +677,94 @@ public class SessionThread extends Thread {
         if (cmdSocket == null) {
             return;
         }
+        // Nobody is left to receive the outcome of a running transfer
+        abortTransfer();
+        if (closed.compareAndSet(false, true)) {
+            Metrics.sessionClosed();
+            SessionManager.getInstance().unregister(this);
+            dataSocketFactory.onSessionClosed();
+        }
         try {
             cmdSocket.close();
         } catch (IOException e) {}
     }
 
+    /**
+     * Queues bytes for the control connection. They are sent as soon as they
+     * complete a reply, that is when they end with a final "NNN " line, so a
+     * multi-line reply goes out in one packet. Anything still queued when a
+     * command finishes is sent by flushReplies().
+     */
     public void writeBytes(byte[] bytes) {
+        synchronized (replyLock) {
+            if (replyLength + bytes.length > replyBuffer.length) {
+                flushReplies();
+            }
+            if (bytes.length > replyBuffer.length) {
+                sendReplyBytes(bytes, 0, bytes.length);
+            } else {
+                System.arraycopy(bytes, 0, replyBuffer, replyLength,
+                        bytes.length);
+                replyLength += bytes.length;
+            }
+            int finalLine = finalReplyLine(bytes);
+            if (finalLine != -1) {
+                Metrics.countReply(bytes[finalLine]);
+                flushReplies();
+            }
+        }
+    }
+
+    /**
+     * Sends any reply lines that are still queued.
+     */
+    public void flushReplies() {
+        synchronized (replyLock) {
+            if (replyLength > 0) {
+                int length = replyLength;
+                replyLength = 0;
+                sendReplyBytes(replyBuffer, 0, length);
+            }
+        }
+    }
+
+    /**
+     * If the last line in bytes is the final line of a reply, which starts
+     * with a three digit code followed by a space, returns the index where
+     * that line starts. Otherwise returns -1.
+     */
+    private static int finalReplyLine(byte[] bytes) {
+        int end = bytes.length;
+        if (end == 0 || bytes[end - 1] != '\n') {
+            return -1;
+        }
+        int start = end - 1;
+        while (start > 0 && bytes[start - 1] != '\n') {
+            start--;
+        }
+        if (end - start >= 4
+                && isDigit(bytes[start]) && isDigit(bytes[start + 1])
+                && isDigit(bytes[start + 2]) && bytes[start + 3] == ' ') {
+            return start;
+        }
+        return -1;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * Writes bytes straight to the control socket. Called with the reply
+     * lock held.
+     */
+    protected void sendReplyBytes(byte[] bytes, int offset, int length) {
         try {
-            // TODO: do we really want to do all of this on each write? Why?
-            BufferedOutputStream out = new BufferedOutputStream(cmdSocket
-                    .getOutputStream(), Defaults.dataChunkSize);
-            out.write(bytes);
-            out.flush();
-            dataSocketFactory.reportTraffic(bytes.length);
+            if (controlOut == null) {
+                controlOut = cmdSocket.getOutputStream();
+            }
+            controlOut.write(bytes, offset, length);
+            dataSocketFactory.reportTraffic(length);
         } catch (IOException e) {
             myLog.l(Log.INFO, "Exception writing socket");
             closeSocket();
@@ -312,7 +773,7 @@ public class SessionThread extends Thread {
     }
 
     public void writeString(String str) {
-        FTPServerService.writeMonitor(false, str);
+        Globals.getPlatform().monitor(false, str);
         byte[] strBytes;
         try {
             strBytes = str.getBytes(encoding);
@@ -327,6 +788,28 @@ public class SessionThread extends Thread {
         return cmdSocket;
     }
 
+    public Source getSource() {
+        return source;
+    }
+
+    /**
+     * Called for every command the client sends, and when a transfer ends.
+     */
+    void markActive() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * How long the client has gone without sending a command or finishing
+     * a transfer, as of now. A session moving data is never idle.
+     */
+    long getIdleMillis(long now) {
+        if (transferState.get() != TRANSFER_IDLE) {
+            return 0;
+        }
+        return now - lastActivity;
+    }
+
     public Account getAccount() {
         return account;
     }
@@ -343,7 +826,15 @@ public class SessionThread extends Thread {
             Source source) {
         this.cmdSocket = socket;
         this.source = source;
+        // Replies are batched by writeBytes, so Nagle would only delay them
+        try {
+            socket.setTcpNoDelay(true);
+        } catch (IOException e) {
+            myLog.l(Log.DEBUG, "Couldn't set TCP_NODELAY on control socket");
+        }
+        Metrics.sessionOpened();
         this.dataSocketFactory = dataSocketFactory;
+        dataSocketFactory.setClientAddress(socket.getInetAddress());
         if(source == Source.LOCAL) {
             this.sendWelcomeBanner = true;
         } else {
@@ -363,6 +854,43 @@ public class SessionThread extends Thread {
         this.binaryMode = binaryMode;
     }
 
+    public String getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    public void setHashAlgorithm(String hashAlgorithm) {
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    public long getHashRangeStart() {
+        return hashRangeStart;
+    }
+
+    public long getHashRangeEnd() {
+        return hashRangeEnd;
+    }
+
+    public void setHashRange(long start, long end) {
+        this.hashRangeStart = start;
+        this.hashRangeEnd = end;
+    }
+
+    public boolean isCompressedMode() {
+        return compressedMode;
+    }
+
+    public void setCompressedMode(boolean compressedMode) {
+        this.compressedMode = compressedMode;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
     public boolean isAuthenticated() {
         return authenticated;
     }
@@ -429,6 +957,22 @@ public class SessionThread extends Thread {
         this.renameFrom = renameFrom;
     }
     
+    public long getRestartOffset() {
+        return restartOffset;
+    }
+
+    public void setRestartOffset(long restartOffset) {
+        this.restartOffset = restartOffset;
+    }
+
+    public long getAllocationSize() {
+        return allocationSize;
+    }
+
+    public void setAllocationSize(long allocationSize) {
+        this.allocationSize = allocationSize;
+    }
+
     public String getEncoding() {
         return encoding;
     }
@@ -19,8 +19,6 @@ along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
 
 package org.swiftp;
 
-import net.micode.fileexplorer.FTPServerService;
-
 import java.net.ServerSocket;
 import java.net.Socket;
 
@@ -28,12 +26,10 @@ import android.util.Log;
 
 public class TcpListener extends Thread {
 	ServerSocket listenSocket;
-	FTPServerService ftpServerService;
 	MyLog myLog = new MyLog(getClass().getName());
 	
-	public TcpListener(ServerSocket listenSocket, FTPServerService ftpServerService) {
+	public TcpListener(ServerSocket listenSocket) {
 		this.listenSocket = listenSocket;
-		this.ftpServerService = ftpServerService;
 	}
 	
 	public void quit() {
@@ -50,12 +46,14 @@ public class TcpListener extends Thread {
 			while(true) {
 				
 				Socket clientSocket = listenSocket.accept();
-				myLog.l(Log.INFO, "New connection, spawned thread");
+				myLog.l(Log.INFO, "New connection");
 				SessionThread newSession = new SessionThread(clientSocket,
 						new NormalDataSocketFactory(), 
 						SessionThread.Source.LOCAL);
-				newSession.start();
-				ftpServerService.registerSessionThread(newSession);
+				// Admission control happens before a thread is started
+				if(SessionManager.getInstance().register(newSession)) {
+					newSession.start();
+				}
 			}
 		} catch (Exception e) {
 			myLog.l(Log.DEBUG, "Exception in TcpListener");
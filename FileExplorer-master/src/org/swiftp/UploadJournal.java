@@ -0,0 +1,386 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import android.util.Log;
+
+/**
+ * Makes STOR crash-safe. An upload from the start of a file is written to a
+ * hidden sibling, ".name.part", which replaces the target with an atomic
+ * rename only once the whole file has arrived and been forced to storage.
+ * Until then, and if the upload fails, the old copy of the file is
+ * untouched.
+ * 
+ * A failed upload's part file is kept and recorded here, so that a later
+ * REST and STOR of the same target continues it instead of starting over.
+ * An upload is also recorded once Defaults.getPartialUploadJournalBytes()
+ * of it have arrived, so that a large one can be continued after a crash.
+ * Small uploads that succeed never touch the journal. Parts that haven't
+ * been continued for Defaults.getPartialUploadTtlMs() are deleted.
+ * 
+ * SIZE, MDTM, RETR and the listings of the target all describe the old
+ * copy until the upload is committed. A client that resumes the upload
+ * picks its restart offset with the SIZE or MLST of the part file itself,
+ * ".name.part", and then sends REST and STOR for the target.
+ * 
+ * Part files the journal knows about, recorded or in progress, are left
+ * out of directory listings. A part left behind by a small upload that
+ * was cut short by a crash is not recorded, so it is listed, and clients
+ * may delete it like any other file.
+ * 
+ * Only one upload of a target may run at a time, so a client that retries
+ * in parallel can't interleave two uploads into the same part file.
+ * 
+ * Like the ChecksumCache, the record of partial uploads survives restarts
+ * in a small journal in the app's files directory.
+ */
+public class UploadJournal {
+	private static final String JOURNAL_NAME = "uploads";
+	private static final String PART_PREFIX = ".";
+	private static final String PART_SUFFIX = ".part";
+	
+	private static UploadJournal instance = null;
+	private static MyLog myLog = new MyLog(UploadJournal.class.getName());
+	
+	/**
+	 * One upload in progress, returned by begin() and passed back to 
+	 * commit() or suspend() when it ends.
+	 */
+	public static class Upload {
+		private final String key;
+		private final File target;
+		private final File part;
+		// Whether the journal has this upload. Only changed with the 
+		// UploadJournal locked.
+		private volatile boolean recorded;
+		
+		Upload(String key, File target, File part, boolean recorded) {
+			this.key = key;
+			this.target = target;
+			this.part = part;
+			this.recorded = recorded;
+		}
+		
+		/**
+		 * Called as data arrives with about how long the part file is. 
+		 * Records the upload once it is long enough to be worth resuming.
+		 * This is cheap until then.
+		 */
+		public void progress(long length) {
+			if(part != null && !recorded 
+					&& length >= Defaults.getPartialUploadJournalBytes()) {
+				UploadJournal.getInstance().record(this);
+			}
+		}
+		
+		/**
+		 * The file the upload should be written to
+		 */
+		public File getFile() {
+			return part != null ? part : target;
+		}
+		
+		/**
+		 * Whether the upload goes to a part file, rather than straight into
+		 * the target
+		 */
+		public boolean isPartial() {
+			return part != null;
+		}
+	}
+	
+	// Partial uploads by the canonical path of their target, mapped to when
+	// they were last written
+	private final Map<String, Long> partials = new HashMap<String, Long>();
+	// Targets with an upload running
+	private final Set<String> active = new HashSet<String>();
+	private final File journalFile;
+	private Writer journal = null;
+	private int journalLines = 0;
+	
+	private UploadJournal(File journalFile) {
+		this.journalFile = journalFile;
+		load();
+	}
+	
+	public static synchronized UploadJournal getInstance() {
+		if(instance == null) {
+			File journalFile = null;
+			File filesDir = Globals.getPlatform().getFilesDir();
+			if(filesDir != null) {
+				journalFile = new File(filesDir, JOURNAL_NAME);
+			}
+			instance = new UploadJournal(journalFile);
+		}
+		return instance;
+	}
+	
+	/**
+	 * Returns the part file that uploads of target are written to
+	 */
+	public static File getPartFile(File target) {
+		return new File(target.getParentFile(), 
+				PART_PREFIX + target.getName() + PART_SUFFIX);
+	}
+	
+	/**
+	 * Starts an upload of target at the given offset, or returns null if
+	 * another upload of it is running. An upload from offset zero goes to
+	 * a new part file. A restart goes on with the partial upload if there 
+	 * is one, and otherwise writes into the target itself. Either way the
+	 * caller must check that the file is long enough.
+	 */
+	public synchronized Upload begin(File target, long offset) {
+		String key = keyFor(target);
+		if(active.contains(key)) {
+			return null;
+		}
+		expire();
+		File part = getPartFile(target);
+		if(offset > 0 && !partials.containsKey(key)) {
+			// Resuming an upload we have no part file for
+			if(myLog.isLoggable(Log.DEBUG)) {
+				myLog.l(Log.DEBUG, "Restarting upload in place: " + target);
+			}
+			active.add(key);
+			return new Upload(key, target, null, false);
+		}
+		if(offset > 0) {
+			if(myLog.isLoggable(Log.DEBUG)) {
+				myLog.l(Log.DEBUG, "Continuing partial upload at " + offset + ": " + part);
+			}
+		}
+		active.add(key);
+		return new Upload(key, target, part, partials.containsKey(key));
+	}
+	
+	private synchronized void record(Upload upload) {
+		record(upload.key);
+		upload.recorded = true;
+	}
+	
+	/**
+	 * Ends a successful upload, moving its part file over the target.
+	 * Returns false if that failed, in which case the part is kept.
+	 */
+	public synchronized boolean commit(Upload upload) {
+		active.remove(upload.key);
+		if(upload.part == null) {
+			return true;
+		}
+		if(!upload.part.renameTo(upload.target)) {
+			// Some filesystems won't rename over an existing file. Losing
+			// the atomicity is better than losing the upload.
+			if(!upload.target.delete() || !upload.part.renameTo(upload.target)) {
+				myLog.l(Log.ERROR, "Couldn't move " + upload.part + " to " 
+						+ upload.target);
+				record(upload);
+				return false;
+			}
+		}
+		forget(upload.key);
+		return true;
+	}
+	
+	/**
+	 * Ends a failed upload. Whatever it received is kept for a restart,
+	 * unless that is nothing at all.
+	 */
+	public synchronized void suspend(Upload upload) {
+		active.remove(upload.key);
+		if(upload.part == null) {
+			return;
+		}
+		if(upload.part.length() == 0) {
+			upload.part.delete();
+			forget(upload.key);
+		} else {
+			record(upload);
+		}
+	}
+	
+	/**
+	 * Whether name looks like that of a part file. This is cheap, and
+	 * lets listings skip the lookup in isHiddenPart() for everything else.
+	 */
+	public static boolean isPartName(String name) {
+		return name.startsWith(PART_PREFIX) && name.endsWith(PART_SUFFIX)
+				&& name.length() > PART_PREFIX.length() + PART_SUFFIX.length();
+	}
+	
+	/**
+	 * Whether file is the part file of an upload that is recorded or in
+	 * progress, and should be left out of listings
+	 */
+	public boolean isHiddenPart(File file) {
+		String name = file.getName();
+		if(!isPartName(name)) {
+			return false;
+		}
+		File target = new File(file.getParentFile(), name.substring(
+				PART_PREFIX.length(), name.length() - PART_SUFFIX.length()));
+		String key = keyFor(target);
+		synchronized(this) {
+			return partials.containsKey(key) || active.contains(key);
+		}
+	}
+	
+	private static String keyFor(File target) {
+		try {
+			return target.getCanonicalPath();
+		} catch (IOException e) {
+			return target.getAbsolutePath();
+		}
+	}
+	
+	/**
+	 * Deletes partial uploads that are too old to be continued
+	 */
+	private void expire() {
+		long ttl = Defaults.getPartialUploadTtlMs();
+		if(ttl <= 0) {
+			return;
+		}
+		long oldest = System.currentTimeMillis() - ttl;
+		Iterator<Map.Entry<String, Long>> it = partials.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<String, Long> entry = it.next();
+			if(entry.getValue() < oldest && !active.contains(entry.getKey())) {
+				File part = getPartFile(new File(entry.getKey()));
+				myLog.l(Log.INFO, "Deleting abandoned upload " + part);
+				part.delete();
+				it.remove();
+				appendToJournal("-\t" + entry.getKey());
+			}
+		}
+	}
+	
+	private void record(String key) {
+		long now = System.currentTimeMillis();
+		partials.put(key, now);
+		appendToJournal("+\t" + key + "\t" + now);
+	}
+	
+	private void forget(String key) {
+		if(partials.remove(key) != null) {
+			appendToJournal("-\t" + key);
+		}
+	}
+	
+	/**
+	 * Replays the journal into memory, dropping entries whose part file is
+	 * gone
+	 */
+	private void load() {
+		if(journalFile == null || !journalFile.exists()) {
+			return;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(journalFile), "UTF-8"));
+			String line;
+			while((line = reader.readLine()) != null) {
+				journalLines++;
+				String[] fields = line.split("\t");
+				if(fields.length == 2 && fields[0].equals("-")) {
+					partials.remove(fields[1]);
+				} else if(fields.length == 3 && fields[0].equals("+")) {
+					partials.put(fields[1], Long.parseLong(fields[2]));
+				}
+			}
+		} catch (Exception e) {
+			// A damaged journal only costs us the chance to resume
+			myLog.l(Log.INFO, "Discarding unreadable upload journal");
+			partials.clear();
+		} finally {
+			try {
+				if(reader != null) {
+					reader.close();
+				}
+			} catch (IOException e) {}
+		}
+		Iterator<String> keys = partials.keySet().iterator();
+		while(keys.hasNext()) {
+			if(!getPartFile(new File(keys.next())).isFile()) {
+				keys.remove();
+			}
+		}
+	}
+	
+	private void appendToJournal(String line) {
+		if(journalFile == null) {
+			return;
+		}
+		try {
+			if(journalLines > 4 * partials.size() + 64) {
+				rewriteJournal();
+			}
+			if(journal == null) {
+				journal = new OutputStreamWriter(
+						new FileOutputStream(journalFile, true), "UTF-8");
+			}
+			journal.write(line);
+			journal.write('\n');
+			journal.flush();
+			journalLines++;
+		} catch (IOException e) {
+			myLog.l(Log.INFO, "Couldn't write upload journal: " + e);
+		}
+	}
+	
+	/**
+	 * Replaces the journal with one line per partial upload
+	 */
+	private void rewriteJournal() throws IOException {
+		if(journal != null) {
+			journal.close();
+			journal = null;
+		}
+		File tmpFile = new File(journalFile.getPath() + ".tmp");
+		Writer writer = new OutputStreamWriter(
+				new FileOutputStream(tmpFile), "UTF-8");
+		try {
+			for(Map.Entry<String, Long> entry : partials.entrySet()) {
+				writer.write("+\t" + entry.getKey() + "\t" + entry.getValue() + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+		if(!tmpFile.renameTo(journalFile)) {
+			throw new IOException("Couldn't replace upload journal");
+		}
+		journalLines = partials.size();
+	}
+}
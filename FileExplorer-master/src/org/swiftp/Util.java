@@ -27,11 +27,6 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.content.ContentResolver;
-import android.content.Context;
-import android.content.pm.PackageManager.NameNotFoundException;
-import android.media.MediaScannerConnection;
-import android.media.MediaScannerConnection.MediaScannerConnectionClient;
-import android.net.Uri;
 import android.provider.Settings;
 import android.util.Log;
 
@@ -47,13 +42,7 @@ abstract public class Util {
 	 * @return The version as a String.
 	 */
 	public static String getVersion() {
-		String packageName = Globals.getContext().getPackageName();
-		try {
-			return Globals.getContext().getPackageManager().getPackageInfo(packageName, 0).versionName;
-		} catch ( NameNotFoundException e) {
-			myLog.l(Log.ERROR, "NameNotFoundException looking up SwiFTP version");
-			return null;
-		}
+		return Globals.getPlatform().getVersion();
 	}
 	
 	
@@ -71,7 +60,9 @@ abstract public class Util {
 			append(byteOfInt(addr, 1)).append(sep).
 			append(byteOfInt(addr, 2)).append(sep).
 			append(byteOfInt(addr, 3));
-			myLog.l(Log.DEBUG, "ipToString returning: " + buf.toString());
+			if(myLog.isLoggable(Log.DEBUG)) {
+				myLog.l(Log.DEBUG, "ipToString returning: " + buf.toString());
+			}
 			return buf.toString();
 		} else {
 			return null;
@@ -124,40 +115,22 @@ abstract public class Util {
 	
 	public static void newFileNotify(String path) {
 		if(Defaults.do_mediascanner_notify) {
-			myLog.l(Log.DEBUG, "Notifying others about new file: " + path);
-			new MediaScannerNotifier(Globals.getContext(), path);
+			if(myLog.isLoggable(Log.DEBUG)) {
+				myLog.l(Log.DEBUG, "Notifying others about new file: " + path);
+			}
+			Globals.getPlatform().fileChanged(path);
 		}
 	}
 	
 	public static void deletedFileNotify(String path) {
 		// This might not work, I couldn't find an API call for this.
 		if(Defaults.do_mediascanner_notify) {
-			myLog.l(Log.DEBUG, "Notifying others about deleted file: " + path);
-			new MediaScannerNotifier(Globals.getContext(), path);
+			if(myLog.isLoggable(Log.DEBUG)) {
+				myLog.l(Log.DEBUG, "Notifying others about deleted file: " + path);
+			}
+			Globals.getPlatform().fileChanged(path);
 		}
 	}
-	
-	// A class to help notify the Music Player and other media services when
-	// a file has been uploaded. Thanks to Dave Sparks in his post to the
-	// Android Developers mailing list on 14 Feb 2009.
-	private static class MediaScannerNotifier implements MediaScannerConnectionClient {
-	    private MediaScannerConnection connection;
-	    private String path;
-
-	    public MediaScannerNotifier(Context context, String path) {
-	        this.path = path;
-	        connection = new MediaScannerConnection(context, this);
-	        connection.connect();
-	    }
-
-	    public void onMediaScannerConnected() {
-	        connection.scanFile(path, null); // null: we don't know MIME type
-	    }
-
-	    public void onScanCompleted(String path, Uri uri) {
-            connection.disconnect();
- 	    }
-	}
 
 	public static String[] concatStrArrays(String[] a1, String[] a2) {
 		String[] retArr = new String[a1.length + a2.length];